@@ -0,0 +1,103 @@
+package com.ineditta.keycloak.auth.sso;
+
+import static com.mesutpiskin.keycloak.auth.email.Stubs.stub;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.util.JsonSerialization;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matching of a brokered identity to an existing local user with the default matcher chain of
+ * {@link OnlyLinkExistingUserAuthenticator}, against a stubbed user store, so only the chain's own work is measured.
+ * <ul>
+ * <li>{@code email}: found by email</li>
+ * <li>{@code emailSearch}: not found by email, found by the exact email search</li>
+ * <li>{@code username}: found by username after both email lookups missed</li>
+ * </ul>
+ * {@code matchCached} answers from {@link CachingExistingUserResolver}; {@code matchSingleFlight} adds the
+ * uncontended overhead of {@link SingleFlightExistingUserResolver}; {@code matchAndWriteNote} adds serializing the
+ * match into the {@code EXISTING_USER_INFO} note.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OnlyLinkExistingUserMatchingBenchmark {
+
+    @Param({ "email", "emailSearch", "username" })
+    public String scenario;
+
+    private KeycloakSession session;
+    private RealmModel realm;
+    private MatchRequest request;
+    private UserMatcherChain resolver;
+    private ExistingUserResolver cachingResolver;
+    private ExistingUserResolver singleFlightResolver;
+
+    @Setup
+    public void setup() {
+        UserModel user = stub(UserModel.class)
+                .returns("getId", "8f14e45f-ceea-467a-9af0-7a2c5c4a3f1e")
+                .returns("getUsername", "jane.doe")
+                .returns("getEmail", "jane.doe@example.com")
+                .returns("isEnabled", true)
+                .build();
+
+        UserProvider users = stub(UserProvider.class)
+                .returns("getUserByEmail", "email".equals(scenario) ? user : null)
+                .answers("searchForUserStream",
+                        args -> "emailSearch".equals(scenario) ? Stream.of(user) : Stream.empty())
+                .returns("getUserByUsername", user)
+                .returns("getUserById", user)
+                .build();
+        session = stub(KeycloakSession.class).returns("users", users).build();
+        realm = stub(RealmModel.class).returns("getId", "realm-id").build();
+        request = MatchRequest.of("jane.doe@example.com", "jane.doe", "idp-subject");
+        resolver = new UserMatcherChain(UserMatchers.parse(UserMatchers.DEFAULT_CHAIN, false));
+        cachingResolver = new CachingExistingUserResolver(resolver, resolver, 60, 60, 1000);
+        singleFlightResolver = new SingleFlightExistingUserResolver(resolver, new Semaphore(16, true), 2000);
+    }
+
+    @Benchmark
+    public List<UserModel> match() {
+        return resolver.resolve(session, realm, request);
+    }
+
+    @Benchmark
+    public List<UserModel> matchCached() {
+        return cachingResolver.resolve(session, realm, request);
+    }
+
+    @Benchmark
+    public List<UserModel> matchSingleFlight() {
+        return singleFlightResolver.resolve(session, realm, request);
+    }
+
+    @Benchmark
+    public String matchAndWriteNote() throws IOException {
+        UserModel match = resolver.resolve(session, realm, request).get(0);
+        return JsonSerialization.writeValueAsString(
+                new OnlyLinkExistingUserAuthenticator.ExistingUserInfo(match.getId(), match.getUsername(), match.getEmail()));
+    }
+}
@@ -0,0 +1,50 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.common.util.SecretGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Code generation through {@link SecretGenerator} as configured by an {@link EmailCodeConfig}. Runs on several
+ * threads, since the generator shares one secure random source.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class CodeGenerationBenchmark {
+
+    @Param({ EmailCodeConfig.ALPHABET_DIGITS, EmailCodeConfig.ALPHABET_ALPHANUMERIC })
+    public String alphabet;
+
+    @Param({ "6", "8" })
+    public String length;
+
+    private EmailCodeConfig config;
+
+    @Setup
+    public void setup() {
+        config = EmailCodeConfig.parse(Map.of(EmailConstants.CODE_ALPHABET, alphabet, EmailConstants.CODE_LENGTH, length));
+    }
+
+    @Benchmark
+    public String generate() {
+        return SecretGenerator.getInstance().randomString(config.getLength(), config.getAlphabet());
+    }
+}
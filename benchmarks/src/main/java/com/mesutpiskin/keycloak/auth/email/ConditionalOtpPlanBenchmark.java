@@ -0,0 +1,129 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.FORCE_OTP_FOR_HTTP_HEADER;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.FORCE_OTP_ROLE;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.OTP_CONTROL_USER_ATTRIBUTE;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.ROLE_MEMBERSHIP_CACHE_TTL;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.SKIP_OTP_FOR_HTTP_HEADER;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.SKIP_OTP_ROLE;
+import static com.mesutpiskin.keycloak.auth.email.Stubs.stub;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+
+/**
+ * Voter evaluation of {@link ConditionalEmailAuthenticatorForm#authenticate}, i.e. deciding whether the OTP form is
+ * shown, for a compiled plan against stubbed users, roles and request headers.
+ * <ul>
+ * <li>{@code attribute}: the user attribute decides</li>
+ * <li>{@code role}: the skip and force roles are checked, without and with membership caching</li>
+ * <li>{@code all}: every voter is configured and abstains, so the fallback decides</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConditionalOtpPlanBenchmark {
+
+    @Param({ "attribute", "role", "roleCached", "all" })
+    public String scenario;
+
+    private ConditionalOtpPlan plan;
+    private AuthenticationFlowContext context;
+
+    @Setup
+    public void setup() {
+        Map<String, String> config = new HashMap<>();
+        String attributeValue = null;
+        switch (scenario) {
+            case "attribute":
+                config.put(OTP_CONTROL_USER_ATTRIBUTE, "otp");
+                attributeValue = "skip";
+                break;
+            case "roleCached":
+                config.put(ROLE_MEMBERSHIP_CACHE_TTL, "60");
+                // fall through
+            case "role":
+                config.put(SKIP_OTP_ROLE, "otp-skip");
+                config.put(FORCE_OTP_ROLE, "otp-force");
+                break;
+            default:
+                config.put(OTP_CONTROL_USER_ATTRIBUTE, "otp");
+                config.put(SKIP_OTP_ROLE, "otp-skip");
+                config.put(FORCE_OTP_ROLE, "otp-force");
+                config.put(SKIP_OTP_FOR_HTTP_HEADER, "X-Forwarded-Host: (10.0.0.1|10.0.0.2)");
+                config.put(FORCE_OTP_FOR_HTTP_HEADER, "User-Agent: .*curl.*");
+        }
+        plan = ConditionalOtpPlan.compile(config, new RoleResolver());
+
+        RoleModel skipRole = role("role-skip", "otp-skip");
+        RoleModel forceRole = role("role-force", "otp-force");
+        Map<String, RoleModel> rolesByName = Map.of("otp-skip", skipRole, "otp-force", forceRole);
+        Map<String, RoleModel> rolesById = Map.of("role-skip", skipRole, "role-force", forceRole);
+        RealmModel realm = stub(RealmModel.class)
+                .returns("getId", "realm-id")
+                .answers("getRole", args -> rolesByName.get((String) args[0]))
+                .answers("getRoleById", args -> rolesById.get((String) args[0]))
+                .build();
+
+        String value = attributeValue;
+        UserModel user = stub(UserModel.class)
+                .returns("getId", "user-id")
+                .answers("getAttributeStream", args -> value != null ? Stream.of(value) : Stream.empty())
+                .returns("hasRole", false)
+                .build();
+
+        MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+        headers.add("Host", "login.example.com");
+        headers.add("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/128.0");
+        headers.add("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        headers.add("X-Forwarded-Host", "10.0.0.9");
+        HttpHeaders httpHeaders = stub(HttpHeaders.class).returns("getRequestHeaders", headers).build();
+        HttpRequest request = stub(HttpRequest.class).returns("getHttpHeaders", httpHeaders).build();
+
+        context = stub(AuthenticationFlowContext.class)
+                .returns("getRealm", realm)
+                .returns("getUser", user)
+                .returns("getHttpRequest", request)
+                .build();
+    }
+
+    @Benchmark
+    public Object decide() {
+        return plan.decide(context);
+    }
+
+    private static RoleModel role(String id, String name) {
+        return stub(RoleModel.class)
+                .returns("getId", id)
+                .returns("getName", name)
+                .returns("isClientRole", false)
+                .build();
+    }
+}
@@ -0,0 +1,112 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import static com.mesutpiskin.keycloak.auth.email.Stubs.stub;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.keycloak.common.util.SecretGenerator;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Verification of an entered email code against its stored hash, with the per-thread {@link Mac} of
+ * {@link EmailCodeHasher} and, for comparison, with a {@link Mac} created for every verification.
+ * Both should stay in the low microseconds. {@code stateNoteAndVerify} adds what
+ * {@link EmailAuthenticatorForm#action} does around it: decoding the state note and looking up the realm keys,
+ * here from stubs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmailCodeVerificationBenchmark {
+
+    @Param({ Algorithm.HS512, Algorithm.HS256 })
+    public String algorithm;
+
+    private SecretKey key;
+    private String binding;
+    private String code;
+    private byte[] expected;
+
+    private KeycloakSession session;
+    private RealmModel realm;
+    private AuthenticationSessionModel authSession;
+    private String note;
+    private final EmailCodeHasher hasher = new EmailCodeHasher();
+
+    @Setup
+    public void setup() {
+        String jcaName = Algorithm.HS256.equals(algorithm) ? "HmacSHA256" : "HmacSHA512";
+        key = new SecretKeySpec(SecretGenerator.getInstance().randomBytes(64), jcaName);
+        binding = SecretGenerator.getInstance().generateSecureID() + ".tab1234abcd";
+        code = SecretGenerator.getInstance().randomString(6, SecretGenerator.DIGITS);
+        expected = EmailCodeHasher.mac(algorithm, key, binding, code);
+
+        KeyWrapper keyWrapper = new KeyWrapper();
+        keyWrapper.setKid("hmac-kid");
+        keyWrapper.setAlgorithm(algorithm);
+        keyWrapper.setSecretKey(key);
+        KeyManager keys = stub(KeyManager.class)
+                .answers("getActiveKey", args -> algorithm.equals(args[2]) ? keyWrapper : null)
+                .answers("getKeysStream", args -> args.length == 3 && algorithm.equals(args[2]) ? Stream.of(keyWrapper) : Stream.empty())
+                .build();
+        session = stub(KeycloakSession.class).returns("keys", keys).build();
+        realm = stub(RealmModel.class).returns("getId", "realm-id").build();
+
+        String rootId = binding.substring(0, binding.indexOf('.'));
+        RootAuthenticationSessionModel root = stub(RootAuthenticationSessionModel.class).returns("getId", rootId).build();
+        authSession = stub(AuthenticationSessionModel.class)
+                .returns("getParentSession", root)
+                .returns("getTabId", binding.substring(binding.indexOf('.') + 1))
+                .build();
+        note = EmailCodeState.issue(hasher.hash(session, realm, authSession, code), System.currentTimeMillis(), 300).encode();
+    }
+
+    @Benchmark
+    public boolean pooledMac() {
+        return EmailCodeHasher.matches(algorithm, key, binding, code, expected);
+    }
+
+    @Benchmark
+    public boolean stateNoteAndVerify() {
+        EmailCodeState state = EmailCodeState.decode(note);
+        return state != null && !state.isExpired(System.currentTimeMillis())
+                && hasher.verify(session, realm, authSession, code, state.getCodeHash());
+    }
+
+    @Benchmark
+    public boolean newMacPerVerification() throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(key.getAlgorithm());
+        mac.init(key);
+        mac.update(binding.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return MessageDigest.isEqual(mac.doFinal(code.getBytes(StandardCharsets.UTF_8)), expected);
+    }
+}
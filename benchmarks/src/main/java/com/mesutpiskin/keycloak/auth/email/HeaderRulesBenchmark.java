@@ -0,0 +1,99 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.FORCE_OTP_FOR_HTTP_HEADER;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.SKIP_OTP_FOR_HTTP_HEADER;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+
+/**
+ * Header rule evaluation of the conditional authenticator, against the previous per-header string concatenation.
+ * Run with {@code -prof gc} to compare {@code gc.alloc.rate.norm}, the bytes allocated per evaluation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HeaderRulesBenchmark {
+
+    private static final int FLAGS = Pattern.DOTALL | Pattern.CASE_INSENSITIVE;
+
+    @Param({ "X-Forwarded-Host: (10.0.0.1|10.0.0.2)", ".*Host: (10.0.0.1|10.0.0.2)" })
+    public String skipPattern;
+
+    @Param({ "User-Agent: .*curl.*" })
+    public String forcePattern;
+
+    @Param({ "10", "40" })
+    public int headerCount;
+
+    private MultivaluedMap<String, String> headers;
+    private HeaderRules rules;
+    private Pattern skip;
+    private Pattern force;
+
+    @Setup
+    public void setup() {
+        headers = new MultivaluedHashMap<>();
+        headers.add("Host", "login.example.com");
+        headers.add("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/128.0");
+        headers.add("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        headers.add("X-Forwarded-Host", "10.0.0.9");
+        for (int i = headers.size(); i < headerCount; i++) {
+            headers.add("X-Proxy-Header-" + i, " value-" + i + " ");
+        }
+
+        rules = HeaderRules.compile(Map.of(SKIP_OTP_FOR_HTTP_HEADER, skipPattern, FORCE_OTP_FOR_HTTP_HEADER, forcePattern));
+        skip = Pattern.compile(skipPattern, FLAGS);
+        force = Pattern.compile(forcePattern, FLAGS);
+    }
+
+    @Benchmark
+    public Object headerRules() {
+        return rules.evaluate(headers);
+    }
+
+    @Benchmark
+    public boolean concatenatingMatch() {
+        return containsMatchingRequestHeader(headers, skip) || containsMatchingRequestHeader(headers, force);
+    }
+
+    @Benchmark
+    public boolean compilingConcatenatingMatch() {
+        return containsMatchingRequestHeader(headers, Pattern.compile(skipPattern, FLAGS))
+                || containsMatchingRequestHeader(headers, Pattern.compile(forcePattern, FLAGS));
+    }
+
+    // the matching previously done by ConditionalEmailAuthenticatorForm
+    private static boolean containsMatchingRequestHeader(MultivaluedMap<String, String> requestHeaders, Pattern pattern) {
+        for (Map.Entry<String, List<String>> entry : requestHeaders.entrySet()) {
+            String key = entry.getKey();
+            for (String value : entry.getValue()) {
+                String headerEntry = key.trim() + ": " + value.trim();
+                if (pattern.matcher(headerEntry).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
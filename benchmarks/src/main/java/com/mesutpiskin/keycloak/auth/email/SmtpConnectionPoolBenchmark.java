@@ -0,0 +1,88 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Sending a code email through {@link SmtpConnectionPool} compared to a new connection per email, against the
+ * in-process {@link SmtpStub}, so the difference is the connection handling alone (a real relay adds TLS and
+ * authentication to each new connection). {@code SmtpConnectionPoolTest} checks the pool's behaviour against the
+ * same stub.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SmtpConnectionPoolBenchmark {
+
+    private static final String OWNER = "realm";
+    private static final String SERVER_KEY = "stub";
+
+    private SmtpStub stub;
+    private SmtpConnectionPool pool;
+    private Supplier<Session> sessionFactory;
+    private Session session;
+    private Message message;
+
+    @Setup
+    public void setup() throws Exception {
+        stub = new SmtpStub();
+        pool = new SmtpConnectionPool(4, 60_000L, 10_000L);
+
+        Properties props = new Properties();
+        props.setProperty("mail.transport.protocol", "smtp");
+        props.setProperty("mail.smtp.host", "127.0.0.1");
+        props.setProperty("mail.smtp.port", Integer.toString(stub.getPort()));
+        sessionFactory = () -> Session.getInstance(props);
+        session = sessionFactory.get();
+
+        MimeMessage mime = new MimeMessage(session);
+        mime.setFrom(new InternetAddress("keycloak@example.com"));
+        mime.setRecipient(Message.RecipientType.TO, new InternetAddress("jane.doe@example.com"));
+        mime.setSubject("Access code");
+        mime.setText("Your access code is 123456");
+        mime.saveChanges();
+        message = mime;
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+        stub.close();
+    }
+
+    @Benchmark
+    public void pooled() throws MessagingException {
+        pool.send(OWNER, SERVER_KEY, sessionFactory, transport -> transport.connect(), message);
+    }
+
+    @Benchmark
+    public void unpooled() throws MessagingException {
+        try (Transport transport = session.getTransport()) {
+            transport.connect();
+            transport.sendMessage(message, message.getAllRecipients());
+        }
+    }
+}
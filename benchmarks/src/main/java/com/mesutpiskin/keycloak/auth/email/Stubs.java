@@ -0,0 +1,76 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * In-process stand-ins for Keycloak interfaces, so benchmarks run without a server.
+ * <p>
+ * A stub answers the methods it was given answers for by name, regardless of their parameters, and returns
+ * {@code false}, {@code 0} or {@code null} for everything else. Answers are looked up in a small map, which is cheap
+ * next to the code under test but not free, so compare benchmarks that use the same stubs.
+ */
+public final class Stubs {
+
+    private Stubs() {
+    }
+
+    public static <T> Builder<T> stub(Class<T> type) {
+        return new Builder<>(type);
+    }
+
+    public static final class Builder<T> {
+        private final Class<T> type;
+        private final Map<String, Function<Object[], Object>> answers = new HashMap<>();
+
+        private Builder(Class<T> type) {
+            this.type = type;
+        }
+
+        public Builder<T> returns(String method, Object value) {
+            answers.put(method, args -> value);
+            return this;
+        }
+
+        public Builder<T> answers(String method, Function<Object[], Object> answer) {
+            answers.put(method, answer);
+            return this;
+        }
+
+        public T build() {
+            Map<String, Function<Object[], Object>> answers = Map.copyOf(this.answers);
+            Object stub = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+                Function<Object[], Object> answer = answers.get(method.getName());
+                if (answer != null) {
+                    return answer.apply(args);
+                }
+                switch (method.getName()) {
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return type.getSimpleName() + " stub";
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            });
+            return type.cast(stub);
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
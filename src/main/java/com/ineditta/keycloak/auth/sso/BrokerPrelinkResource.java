@@ -0,0 +1,246 @@
+package com.ineditta.keycloak.auth.sso;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.ErrorResponse;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+import com.ineditta.keycloak.auth.sso.PrelinkReport.Outcome;
+
+/**
+ * Vincula em lote identidades de um IdP a usuários locais já existentes, antes do primeiro login, com as mesmas
+ * regras do {@link OnlyLinkExistingUserAuthenticator}. O primeiro login dessas identidades segue então o caminho
+ * rápido de conta já vinculada, sem passar pelo first broker login.
+ * <p>
+ * {@code POST /admin/realms/{realm}/broker-prelink/{alias}?format=jsonl|csv&batchSize=500&dryRun=false&matchers=...}, com o
+ * arquivo (ver {@link PrelinkEntry}) no corpo. O arquivo é lido em streaming e cada lote é gravado na sua própria
+ * transação, então um lote com erro não desfaz os anteriores; o lote com erro é refeito linha a linha, para que só as
+ * linhas com problema fiquem como {@code ERROR}.
+ * <p>
+ * A requisição é síncrona e processa no máximo {@code maxLines} linhas, para terminar antes dos timeouts do proxy;
+ * arquivos maiores são enviados em partes, a partir de {@link PrelinkReport#nextLine}.
+ */
+public class BrokerPrelinkResource {
+
+    private static final Logger LOG = Logger.getLogger(BrokerPrelinkResource.class);
+
+    static final int MAX_BATCH_SIZE = 5000;
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+    private final AdminEventBuilder adminEvent;
+    private final int maxLines;
+
+    public BrokerPrelinkResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth,
+                                 AdminEventBuilder adminEvent, int maxLines) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+        this.adminEvent = adminEvent;
+        this.maxLines = maxLines;
+    }
+
+    @POST
+    @Path("{alias}")
+    @Consumes({ "text/csv", "application/x-ndjson", "application/jsonl", MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
+    @Produces(MediaType.APPLICATION_JSON)
+    public PrelinkReport prelink(@PathParam("alias") String alias,
+                                 @QueryParam("format") @DefaultValue("jsonl") String format,
+                                 @QueryParam("batchSize") @DefaultValue("500") int batchSize,
+                                 @QueryParam("dryRun") @DefaultValue("false") boolean dryRun,
+                                 @QueryParam("matchers") String matchers,
+                                 InputStream body) {
+        auth.users().requireManage();
+
+        if (session.identityProviders().getByAlias(alias) == null) {
+            throw ErrorResponse.error("Identity provider not found", Response.Status.NOT_FOUND);
+        }
+        boolean csv = "csv".equalsIgnoreCase(format);
+        if (!csv && !"jsonl".equalsIgnoreCase(format)) {
+            throw ErrorResponse.error("Unsupported format, use jsonl or csv", Response.Status.BAD_REQUEST);
+        }
+        int size = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+
+        ExistingUserResolver resolver = resolver(matchers);
+        PrelinkReport report = new PrelinkReport(dryRun);
+        List<PrelinkEntry> batch = new ArrayList<>(size);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (report.lines >= maxLines) {
+                    report.nextLine = report.lines + 1;
+                    break;
+                }
+                report.lines++;
+                if (line.isBlank() || (csv && report.lines == 1 && PrelinkEntry.isCsvHeader(line))) {
+                    continue;
+                }
+
+                PrelinkEntry entry;
+                try {
+                    entry = csv ? PrelinkEntry.fromCsv(report.lines, line) : PrelinkEntry.fromJson(report.lines, line);
+                } catch (IOException e) {
+                    entry = new PrelinkEntry();
+                    entry.line = report.lines;
+                }
+                if (!entry.isValid()) {
+                    report.record(entry, Outcome.INVALID, "subject and email or username are required");
+                    continue;
+                }
+
+                batch.add(entry);
+                if (batch.size() >= size) {
+                    linkBatch(resolver, alias, batch, dryRun, report);
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw ErrorResponse.error("Failed to read the request body", Response.Status.BAD_REQUEST);
+        }
+        if (!batch.isEmpty()) {
+            linkBatch(resolver, alias, batch, dryRun, report);
+        }
+
+        LOG.infof("Broker pre-link finished. realm=%s idp=%s dryRun=%s lines=%d nextLine=%s outcomes=%s",
+                realm.getName(), alias, dryRun, report.lines, report.nextLine, report.outcomes);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("identityProvider", alias);
+        summary.put("dryRun", dryRun);
+        summary.put("lines", report.lines);
+        summary.put("nextLine", report.nextLine);
+        summary.put("outcomes", report.outcomes);
+        adminEvent.operation(OperationType.ACTION)
+                .resource(ResourceType.USER)
+                .resourcePath(session.getContext().getUri())
+                .representation(summary)
+                .success();
+        return report;
+    }
+
+    private void linkBatch(ExistingUserResolver resolver, String alias, List<PrelinkEntry> batch, boolean dryRun,
+                           PrelinkReport report) {
+        String realmId = realm.getId();
+        List<Outcome> outcomes = new ArrayList<>(batch.size());
+        List<String> details = new ArrayList<>(batch.size());
+        try {
+            KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), batchSession -> {
+                outcomes.clear();
+                details.clear();
+                RealmModel batchRealm = batchSession.realms().getRealm(realmId);
+                batchSession.getContext().setRealm(batchRealm);
+                for (PrelinkEntry entry : batch) {
+                    link(batchSession, batchRealm, resolver, alias, entry, dryRun, outcomes, details);
+                }
+            });
+        } catch (RuntimeException e) {
+            if (batch.size() > 1) {
+                // uma linha (por exemplo um vínculo duplicado) desfaz o lote inteiro: refaz linha a linha
+                LOG.warnf("Broker pre-link batch failed, retrying line by line. realm=%s idp=%s lines=%d-%d error=%s",
+                        realm.getName(), alias, batch.get(0).line, batch.get(batch.size() - 1).line, e.getMessage());
+                for (PrelinkEntry entry : batch) {
+                    linkBatch(resolver, alias, List.of(entry), dryRun, report);
+                }
+                return;
+            }
+            LOG.errorf(e, "Broker pre-link line failed. realm=%s idp=%s line=%d", realm.getName(), alias, batch.get(0).line);
+            report.record(batch.get(0), Outcome.ERROR, e.getMessage());
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            report.record(batch.get(i), outcomes.get(i), details.get(i));
+        }
+    }
+
+    private static void link(KeycloakSession session, RealmModel realm, ExistingUserResolver resolver, String alias,
+                             PrelinkEntry entry, boolean dryRun, List<Outcome> outcomes, List<String> details) {
+        UserProvider users = session.users();
+
+        UserModel linked = users.getUserByFederatedIdentity(realm, new FederatedIdentityModel(alias, entry.subject, null));
+        if (linked != null) {
+            outcomes.add(Outcome.ALREADY_LINKED);
+            details.add(linked.getUsername());
+            return;
+        }
+
+        List<UserModel> candidates;
+        try {
+            candidates = resolver.resolve(session, realm, MatchRequest.of(entry.email, entry.username, entry.subject));
+        } catch (ExistingUserLookupBusyException e) {
+            // só esta linha: as buscas dividem as vagas com os logins, e o resto do lote segue
+            outcomes.add(Outcome.ERROR);
+            details.add("lookup busy, retry this line later");
+            return;
+        }
+        if (candidates.size() > 1) {
+            outcomes.add(Outcome.CONFLICT);
+            details.add("multiple local users match");
+            return;
+        }
+        if (candidates.isEmpty()) {
+            outcomes.add(Outcome.NOT_FOUND);
+            details.add(null);
+            return;
+        }
+
+        UserModel match = candidates.get(0);
+        if (!match.isEnabled()) {
+            outcomes.add(Outcome.DISABLED);
+            details.add(match.getUsername());
+            return;
+        }
+        if (users.getFederatedIdentity(realm, match, alias) != null) {
+            outcomes.add(Outcome.CONFLICT);
+            details.add(match.getUsername() + " is linked to another account of this identity provider");
+            return;
+        }
+
+        if (!dryRun) {
+            users.addFederatedIdentity(realm, match, new FederatedIdentityModel(alias, entry.subject, entry.username));
+        }
+        outcomes.add(Outcome.LINKED);
+        details.add(match.getUsername());
+    }
+
+    private ExistingUserResolver resolver(String matchers) {
+        if (!(session.getKeycloakSessionFactory().getProviderFactory(Authenticator.class,
+                OnlyLinkExistingUserAuthenticatorFactory.PROVIDER_ID) instanceof OnlyLinkExistingUserAuthenticatorFactory factory)) {
+            throw ErrorResponse.error("The " + OnlyLinkExistingUserAuthenticatorFactory.PROVIDER_ID
+                    + " authenticator is disabled on this server", Response.Status.CONFLICT);
+        }
+        try {
+            return factory.getResolver(matchers);
+        } catch (IllegalArgumentException e) {
+            throw ErrorResponse.error(e.getMessage(), Response.Status.BAD_REQUEST);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.ineditta.keycloak.auth.sso;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProviderFactory;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+/**
+ * Publica o {@link BrokerPrelinkResource} em {@code /admin/realms/{realm}/broker-prelink}.
+ */
+public class BrokerPrelinkResourceProviderFactory implements AdminRealmResourceProviderFactory, AdminRealmResourceProvider {
+
+    public static final String PROVIDER_ID = "broker-prelink";
+
+    static final String MAX_LINES = "maxLines";
+
+    private int maxLines;
+
+    @Override
+    public AdminRealmResourceProvider create(KeycloakSession session) {
+        return this;
+    }
+
+    @Override
+    public Object getResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth, AdminEventBuilder adminEvent) {
+        return new BrokerPrelinkResource(session, realm, auth, adminEvent, maxLines);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        maxLines = Math.max(1, config.getInt(MAX_LINES, 100000));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
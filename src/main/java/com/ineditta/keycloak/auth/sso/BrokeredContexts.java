@@ -0,0 +1,57 @@
+package com.ineditta.keycloak.auth.sso;
+
+import org.keycloak.authentication.authenticators.broker.AbstractIdpAuthenticator;
+import org.keycloak.authentication.authenticators.broker.util.SerializedBrokeredIdentityContext;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/**
+ * Lê o {@link BrokeredIdentityContext} do first broker login uma vez por requisição.
+ * <p>
+ * A note do contexto é um JSON que precisa ser lido e depois desserializado (o que ainda carrega o IdP do realm); o
+ * resultado fica na sessão da requisição, por sessão de autenticação e aba, junto com a note de que veio. Quem mais
+ * pedir o contexto na mesma requisição o reaproveita; se a note mudou desde então (outro passo gravou um contexto
+ * novo), o contexto é lido de novo. Sem a note não há contexto, em vez de um {@link NullPointerException}.
+ */
+public final class BrokeredContexts {
+
+    private static final String ATTRIBUTE_PREFIX = BrokeredContexts.class.getName() + ':';
+
+    private BrokeredContexts() {
+    }
+
+    /**
+     * @return o contexto do login pelo IdP, ou {@code null} se a sessão de autenticação não tiver um
+     */
+    public static BrokeredIdentityContext get(KeycloakSession session, AuthenticationSessionModel authSession) {
+        String note = authSession.getAuthNote(AbstractIdpAuthenticator.BROKERED_CONTEXT_NOTE);
+        if (note == null) {
+            return null;
+        }
+
+        String attribute = ATTRIBUTE_PREFIX + authSession.getParentSession().getId() + '.' + authSession.getTabId();
+        Cached cached = session.getAttribute(attribute, Cached.class);
+        if (cached != null && cached.note.equals(note)) {
+            return cached.context;
+        }
+
+        SerializedBrokeredIdentityContext serializedCtx = SerializedBrokeredIdentityContext.readFromAuthenticationSession(
+                authSession, AbstractIdpAuthenticator.BROKERED_CONTEXT_NOTE);
+        BrokeredIdentityContext context = serializedCtx == null ? null : serializedCtx.deserialize(session, authSession);
+        if (context != null) {
+            session.setAttribute(attribute, new Cached(note, context));
+        }
+        return context;
+    }
+
+    private static final class Cached {
+        private final String note;
+        private final BrokeredIdentityContext context;
+
+        Cached(String note, BrokeredIdentityContext context) {
+            this.note = note;
+            this.context = context;
+        }
+    }
+}
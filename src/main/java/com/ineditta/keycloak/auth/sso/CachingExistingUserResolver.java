@@ -0,0 +1,106 @@
+package com.ineditta.keycloak.auth.sso;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Guarda, por realm e pelos valores procurados pela cadeia (email, username...), qual usuário foi encontrado (ou
+ * que nenhum foi), para que logins repetidos de quem ainda não está vinculado não consultem o banco de novo.
+ * <p>
+ * O cache é local do nó. Um acerto guarda só o id do usuário, que é carregado pelo cache de usuários do Keycloak e
+ * conferido: se nenhum passo da cadeia associa mais o usuário à identidade, a busca é refeita. Conflitos nunca são guardados. Usuários
+ * criados depois de um "não encontrado" só são achados quando esse resultado expira; da mesma forma, um segundo
+ * usuário criado depois com o mesmo email só gera o conflito quando o acerto guardado expira, já que conferir a
+ * unicidade custaria a mesma busca que o cache evita.
+ * <p>
+ * Com o cache cheio, os resultados expirados são removidos (no máximo uma varredura por segundo) e, se ainda não
+ * houver espaço, o novo resultado não é guardado; o cache nunca é esvaziado de uma vez.
+ */
+public class CachingExistingUserResolver implements ExistingUserResolver {
+
+    private final UserMatcherChain chain;
+    private final ExistingUserResolver delegate;
+    private final long hitMillis;
+    private final long missMillis;
+    private final int maxEntries;
+
+    private static final long SWEEP_INTERVAL_MILLIS = 1000L;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    /**
+     * @param chain a cadeia usada pelo {@code delegate}, que define a chave e confere os acertos
+     * @param hitSeconds por quanto tempo um usuário encontrado é reaproveitado, 0 para não guardar
+     * @param missSeconds por quanto tempo um "não encontrado" é reaproveitado, 0 para não guardar
+     */
+    public CachingExistingUserResolver(UserMatcherChain chain, ExistingUserResolver delegate, int hitSeconds,
+                                       int missSeconds, int maxEntries) {
+        this.chain = chain;
+        this.delegate = delegate;
+        this.hitMillis = hitSeconds * 1000L;
+        this.missMillis = missSeconds * 1000L;
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    public List<UserModel> resolve(KeycloakSession session, RealmModel realm, MatchRequest request) {
+        String key = realm.getId() + '\n' + chain.cacheKey(request);
+        long now = System.currentTimeMillis();
+
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt > now) {
+            if (entry.userId == null) {
+                return List.of();
+            }
+            UserModel user = session.users().getUserById(realm, entry.userId);
+            if (user != null && chain.matches(session, realm, user, request)) {
+                return List.of(user);
+            }
+            entries.remove(key, entry);
+        } else if (entry != null) {
+            entries.remove(key, entry);
+        }
+
+        List<UserModel> found = delegate.resolve(session, realm, request);
+        if (found.size() == 1 && hitMillis > 0) {
+            put(key, new Entry(found.get(0).getId(), now + hitMillis), now);
+        } else if (found.isEmpty() && missMillis > 0) {
+            put(key, new Entry(null, now + missMillis), now);
+        }
+        return found;
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private void put(String key, Entry entry, long now) {
+        if (entries.size() >= maxEntries && !entries.containsKey(key)) {
+            long sweepAt = nextSweep.get();
+            if (now >= sweepAt && nextSweep.compareAndSet(sweepAt, now + SWEEP_INTERVAL_MILLIS)) {
+                entries.values().removeIf(cached -> cached.expiresAt <= now);
+            }
+            if (entries.size() >= maxEntries) {
+                return;
+            }
+        }
+        entries.put(key, entry);
+    }
+
+    private static class Entry {
+        private final String userId;
+        private final long expiresAt;
+
+        Entry(String userId, long expiresAt) {
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
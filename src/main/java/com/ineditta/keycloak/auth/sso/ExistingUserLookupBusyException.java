@@ -0,0 +1,11 @@
+package com.ineditta.keycloak.auth.sso;
+
+/**
+ * A busca do usuário local não começou a tempo porque o nó já está fazendo o máximo de buscas simultâneas.
+ */
+public class ExistingUserLookupBusyException extends RuntimeException {
+
+    public ExistingUserLookupBusyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,21 @@
+package com.ineditta.keycloak.auth.sso;
+
+import java.util.List;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Encontra os usuários locais candidatos ao vínculo com uma identidade do IdP.
+ * <p>
+ * Implementações são compartilhadas entre requisições e precisam ser thread-safe. Outra estratégia pode ser
+ * instalada sobrescrevendo {@link OnlyLinkExistingUserAuthenticatorFactory#createResolver}.
+ */
+public interface ExistingUserResolver {
+
+    /**
+     * @return nenhum, um (match) ou mais de um (conflito) usuário; em caso de conflito não é preciso trazer todos
+     */
+    List<UserModel> resolve(KeycloakSession session, RealmModel realm, MatchRequest request);
+}
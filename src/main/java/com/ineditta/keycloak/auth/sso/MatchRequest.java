@@ -0,0 +1,57 @@
+package com.ineditta.keycloak.auth.sso;
+
+import java.util.function.Function;
+
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+
+/**
+ * O que se sabe da identidade do IdP para achar o usuário local: email, username, o id (subject) no IdP e os
+ * atributos recebidos do IdP.
+ */
+public final class MatchRequest {
+
+    private static final Function<String, String> NO_ATTRIBUTES = name -> null;
+
+    private final String email;
+    private final String username;
+    private final String subject;
+    private final Function<String, String> attributes;
+
+    public MatchRequest(String email, String username, String subject, Function<String, String> attributes) {
+        this.email = trimOrNull(email);
+        this.username = trimOrNull(username);
+        this.subject = trimOrNull(subject);
+        this.attributes = attributes != null ? attributes : NO_ATTRIBUTES;
+    }
+
+    public static MatchRequest of(BrokeredIdentityContext brokerCtx) {
+        return new MatchRequest(brokerCtx.getEmail(), brokerCtx.getUsername(), brokerCtx.getId(), brokerCtx::getUserAttribute);
+    }
+
+    public static MatchRequest of(String email, String username, String subject) {
+        return new MatchRequest(email, username, subject, null);
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return o primeiro valor do atributo recebido do IdP, ou {@code null}
+     */
+    public String getAttribute(String name) {
+        return trimOrNull(attributes.apply(name));
+    }
+
+    private static String trimOrNull(String v) {
+        return (v == null || v.isBlank()) ? null : v.trim();
+    }
+}
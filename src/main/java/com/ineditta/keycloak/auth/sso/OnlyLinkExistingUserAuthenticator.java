@@ -1,16 +1,17 @@
 package com.ineditta.keycloak.auth.sso;
 
+import com.mesutpiskin.keycloak.auth.email.AuthenticatorConfigCache;
+import com.mesutpiskin.keycloak.auth.email.AuthenticatorMetrics;
+import com.mesutpiskin.keycloak.auth.email.AuthenticatorMetrics.BrokerMatch;
 import org.jboss.logging.Logger;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.Authenticator;
-import org.keycloak.authentication.authenticators.broker.AbstractIdpAuthenticator;
-import org.keycloak.authentication.authenticators.broker.util.SerializedBrokeredIdentityContext;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
-import org.keycloak.models.UserProvider;
 import org.keycloak.sessions.AuthenticationSessionModel;
 import org.keycloak.util.JsonSerialization;
 import java.io.IOException;
@@ -24,66 +25,67 @@ public class OnlyLinkExistingUserAuthenticator implements Authenticator {
     // (mesmo nome usado internamente pelo KC).
     private static final String EXISTING_USER_INFO = "EXISTING_USER_INFO";
 
+    private final ExistingUserResolver resolver;
+    private final AuthenticatorConfigCache<ExistingUserResolver> configuredResolvers;
+
+    public OnlyLinkExistingUserAuthenticator(ExistingUserResolver resolver,
+                                             AuthenticatorConfigCache<ExistingUserResolver> configuredResolvers) {
+        this.resolver = resolver;
+        this.configuredResolvers = configuredResolvers;
+    }
+
     @Override
     public void authenticate(AuthenticationFlowContext context) {
         AuthenticationSessionModel authSession = context.getAuthenticationSession();
         KeycloakSession session = context.getSession();
         RealmModel realm = context.getRealm();
-        UserProvider users = session.users();
-
-        // Recupera o BrokeredIdentityContext da sessão (KC 26.x)
-        SerializedBrokeredIdentityContext serializedCtx =
-                SerializedBrokeredIdentityContext.readFromAuthenticationSession(
-                        authSession,
-                        AbstractIdpAuthenticator.BROKERED_CONTEXT_NOTE
-                );
 
-        BrokeredIdentityContext brokerCtx = serializedCtx.deserialize(session, authSession);
+        // Recupera o BrokeredIdentityContext da sessão (KC 26.x), lido uma vez por requisição
+        BrokeredIdentityContext brokerCtx = BrokeredContexts.get(session, authSession);
 
         if (brokerCtx == null) {
             LOG.warn("BrokeredIdentityContext is null in first-broker-login");
+            AuthenticatorMetrics.brokerMatch(BrokerMatch.NO_BROKER_CONTEXT);
             context.failure(AuthenticationFlowError.IDENTITY_PROVIDER_ERROR);
             return;
         }
 
-        String email = trimOrNull(brokerCtx.getEmail());
-        String username = trimOrNull(brokerCtx.getUsername());
-
-        UserModel match = null;
-
-        // 1) Match por EMAIL (preferencial)
-        if (email != null) {
-            UserModel byEmail = users.getUserByEmail(realm, email);
-            if (byEmail != null) {
-                match = byEmail;
-            } else {
-                // fallback (alguns stores podem não indexar getUserByEmail):
-                List<UserModel> list = users.searchForUserByUserAttributeStream(realm, "email", email).toList();
-                if (list.size() == 1) {
-                    match = list.get(0);
-                } else if (list.size() > 1) {
-                    LOG.warnf("Multiple users found with same email: %s", email);
-                    context.failure(AuthenticationFlowError.USER_CONFLICT);
-                    return;
-                }
-            }
-        }
+        MatchRequest request = MatchRequest.of(brokerCtx);
+        String email = request.getEmail();
+        String username = request.getUsername();
+
+        // Cadeia de busca da config da execução, montada uma vez por config
+        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
+        ExistingUserResolver matcher = config != null ? configuredResolvers.get(config) : resolver;
 
-        // 2) Se não achou por email, tenta USERNAME
-        if (match == null && username != null) {
-            UserModel byUsername = users.getUserByUsername(realm, username);
-            if (byUsername != null) match = byUsername;
+        List<UserModel> candidates;
+        try {
+            candidates = matcher.resolve(session, realm, request);
+        } catch (ExistingUserLookupBusyException e) {
+            LOG.warnf("Existing user lookup rejected (email=%s, username=%s): %s", email, username, e.getMessage());
+            AuthenticatorMetrics.brokerMatch(BrokerMatch.BUSY);
+            context.failure(AuthenticationFlowError.INTERNAL_ERROR);
+            return;
+        }
+        if (candidates.size() > 1) {
+            LOG.warnf("Multiple users found for IdP user (email=%s, username=%s)", email, username);
+            AuthenticatorMetrics.brokerMatch(BrokerMatch.CONFLICT);
+            context.failure(AuthenticationFlowError.USER_CONFLICT);
+            return;
         }
+        UserModel match = candidates.isEmpty() ? null : candidates.get(0);
 
         // 3) Decide
         if (match == null) {
             LOG.warnf("No local user found for IdP user (email=%s, username=%s). Failing without creation.", email, username);
+            AuthenticatorMetrics.brokerMatch(BrokerMatch.NOT_FOUND);
             context.failure(AuthenticationFlowError.INVALID_USER);
             return;
         }
 
         if (!match.isEnabled()) {
             LOG.warnf("Matched user is DISABLED: %s", match.getUsername());
+            AuthenticatorMetrics.brokerMatch(BrokerMatch.DISABLED);
             context.failure(AuthenticationFlowError.USER_DISABLED);
             return;
         }
@@ -100,6 +102,7 @@ public class OnlyLinkExistingUserAuthenticator implements Authenticator {
         }
 
         // Define o usuário no contexto e segue o fluxo (subflows farão a vinculação)
+        AuthenticatorMetrics.brokerMatch(BrokerMatch.LINKED);
         context.setUser(match);
         context.success();
     }
@@ -110,10 +113,6 @@ public class OnlyLinkExistingUserAuthenticator implements Authenticator {
     @Override public void setRequiredActions(KeycloakSession session, RealmModel realm, UserModel user) { }
     @Override public void close() { }
 
-    private static String trimOrNull(String v) {
-        return (v == null || v.isBlank()) ? null : v.trim();
-    }
-
     // POJO simples armazenado em JSON na note EXISTING_USER_INFO
     public static class ExistingUserInfo {
         public String id;
@@ -1,5 +1,6 @@
 package com.ineditta.keycloak.auth.sso;
 
+import com.mesutpiskin.keycloak.auth.email.AuthenticatorConfigCache;
 import org.keycloak.Config;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.AuthenticatorFactory;
@@ -8,11 +9,35 @@ import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.provider.ProviderConfigProperty;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 
 public class OnlyLinkExistingUserAuthenticatorFactory implements AuthenticatorFactory {
 
     public static final String PROVIDER_ID = "only-link-existing-user";
 
+    static final String EMAIL_ATTRIBUTE_FALLBACK = "emailAttributeFallback";
+    static final String CACHE_SECONDS = "cacheSeconds";
+    static final String NEGATIVE_CACHE_SECONDS = "negativeCacheSeconds";
+    static final String CACHE_SIZE = "cacheSize";
+    static final String MAX_CONCURRENT_LOOKUPS = "maxConcurrentLookups";
+    static final String LOOKUP_WAIT_MILLIS = "lookupWaitMillis";
+
+    // Config da execução com a cadeia de busca
+    static final String MATCHERS = "matchers";
+
+    // Cadeias diferentes compiladas no nó; as pedidas pelo pré-vínculo não passam deste limite
+    static final int MAX_CHAINS = 32;
+
+    private final AuthenticatorConfigCache<ExistingUserResolver> resolvers = new AuthenticatorConfigCache<>(this::compile);
+    private final ConcurrentMap<String, ExistingUserResolver> chains = new ConcurrentHashMap<>();
+
+    private Config.Scope config;
+    private Semaphore lookupPermits;
+    private ExistingUserResolver resolver;
+
     @Override
     public String getId() {
         return PROVIDER_ID;
@@ -30,11 +55,81 @@ public class OnlyLinkExistingUserAuthenticatorFactory implements AuthenticatorFa
 
     @Override
     public Authenticator create(KeycloakSession session) {
-        return new OnlyLinkExistingUserAuthenticator();
+        return new OnlyLinkExistingUserAuthenticator(resolver, resolvers);
     }
 
     @Override
     public void init(Config.Scope config) {
+        this.config = config;
+        int maxConcurrentLookups = config.getInt(MAX_CONCURRENT_LOOKUPS, 16);
+        this.lookupPermits = maxConcurrentLookups > 0 ? new Semaphore(maxConcurrentLookups, true) : null;
+        this.resolver = createResolver(config, UserMatchers.parse(UserMatchers.DEFAULT_CHAIN, emailAttributeFallback()));
+    }
+
+    /**
+     * Estratégia de busca usada pelo autenticador sem config de execução, também usada no pré-vínculo em lote.
+     */
+    public ExistingUserResolver getResolver() {
+        return resolver;
+    }
+
+    /**
+     * Estratégia de busca para uma cadeia pedida, por exemplo {@code email,attribute:employeeId}; a cadeia padrão
+     * para {@code null} ou vazio. Cadeias equivalentes reaproveitam a mesma estratégia.
+     *
+     * @throws IllegalArgumentException se a cadeia tiver um passo inválido, ou se já houver {@value #MAX_CHAINS}
+     * cadeias diferentes em uso
+     */
+    public ExistingUserResolver getResolver(String matchers) {
+        if (matchers == null || matchers.isBlank()) {
+            return resolver;
+        }
+        List<UserMatcher> chain = UserMatchers.parse(matchers, emailAttributeFallback(), true);
+        if (chain.isEmpty()) {
+            return resolver;
+        }
+        return resolverFor(chain, true);
+    }
+
+    /**
+     * Cria a estratégia de busca do usuário local, compartilhada por todas as requisições deste nó.
+     */
+    protected ExistingUserResolver createResolver(Config.Scope config, List<UserMatcher> chain) {
+        UserMatcherChain matcherChain = new UserMatcherChain(chain);
+        ExistingUserResolver resolver = new SingleFlightExistingUserResolver(matcherChain, lookupPermits,
+                Math.max(0, config.getInt(LOOKUP_WAIT_MILLIS, 2000)));
+        int cacheSeconds = config.getInt(CACHE_SECONDS, 0);
+        int negativeCacheSeconds = config.getInt(NEGATIVE_CACHE_SECONDS, 0);
+        if (cacheSeconds <= 0 && negativeCacheSeconds <= 0) {
+            return resolver;
+        }
+        return new CachingExistingUserResolver(matcherChain, resolver, Math.max(0, cacheSeconds),
+                Math.max(0, negativeCacheSeconds), Math.max(1, config.getInt(CACHE_SIZE, 10000)));
+    }
+
+    private ExistingUserResolver compile(Map<String, String> raw) {
+        String matchers = raw.get(MATCHERS);
+        List<UserMatcher> chain = matchers == null ? List.of() : UserMatchers.parse(matchers, emailAttributeFallback());
+        return chain.isEmpty() ? resolver : resolverFor(chain, false);
+    }
+
+    private ExistingUserResolver resolverFor(List<UserMatcher> chain, boolean limited) {
+        String spec = UserMatchers.spec(chain);
+        if (spec.equals(UserMatchers.DEFAULT_CHAIN)) {
+            return resolver;
+        }
+        ExistingUserResolver cached = chains.get(spec);
+        if (cached != null) {
+            return cached;
+        }
+        if (limited && chains.size() >= MAX_CHAINS) {
+            throw new IllegalArgumentException("Too many different user matcher chains in use");
+        }
+        return chains.computeIfAbsent(spec, key -> createResolver(config, chain));
+    }
+
+    private boolean emailAttributeFallback() {
+        return config.getBoolean(EMAIL_ATTRIBUTE_FALLBACK, false);
     }
 
     @Override
@@ -57,19 +152,19 @@ public class OnlyLinkExistingUserAuthenticatorFactory implements AuthenticatorFa
 
 	@Override
 	public String getReferenceCategory() {
-		// TODO Auto-generated method stub
 		return null;
 	}
 
 	@Override
 	public boolean isConfigurable() {
-		// TODO Auto-generated method stub
-		return false;
+		return true;
 	}
 
 	@Override
 	public List<ProviderConfigProperty> getConfigProperties() {
-		// TODO Auto-generated method stub
-		return null;
+		return List.of(
+				new ProviderConfigProperty(MATCHERS, "Matchers",
+						"Ordem de busca do usuário local, separada por vírgulas: email, username, attribute:<atributo local>[=<atributo do IdP>], idp:<alias de outro IdP com o mesmo subject>. Para no primeiro passo que achar alguém.",
+						ProviderConfigProperty.STRING_TYPE, UserMatchers.DEFAULT_CHAIN));
 	}
 }
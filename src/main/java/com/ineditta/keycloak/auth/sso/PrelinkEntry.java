@@ -0,0 +1,93 @@
+package com.ineditta.keycloak.auth.sso;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Uma linha do arquivo de pré-vínculo: o id do usuário no IdP (subject) e o email e/ou username usados para achar
+ * o usuário local, como no primeiro login pelo IdP.
+ * <p>
+ * JSONL: {@code {"subject": "...", "email": "...", "username": "..."}} por linha. CSV: {@code subject,email,username},
+ * com campos opcionalmente entre aspas duplas e cabeçalho opcional começando por {@code subject}.
+ */
+public class PrelinkEntry {
+
+    public int line;
+    public String subject;
+    public String email;
+    public String username;
+
+    public PrelinkEntry() {}
+
+    static PrelinkEntry fromJson(int line, String json) throws IOException {
+        PrelinkEntry entry = JsonSerialization.readValue(json, PrelinkEntry.class);
+        if (entry == null) {
+            // a linha "null": sem campos, reportada como inválida
+            entry = new PrelinkEntry();
+        }
+        entry.line = line;
+        entry.normalize();
+        return entry;
+    }
+
+    static PrelinkEntry fromCsv(int line, String csv) {
+        String[] fields = splitCsv(csv);
+        PrelinkEntry entry = new PrelinkEntry();
+        entry.line = line;
+        entry.subject = fields.length > 0 ? fields[0] : null;
+        entry.email = fields.length > 1 ? fields[1] : null;
+        entry.username = fields.length > 2 ? fields[2] : null;
+        entry.normalize();
+        return entry;
+    }
+
+    static boolean isCsvHeader(String csv) {
+        return csv.trim().toLowerCase(Locale.ROOT).startsWith("subject");
+    }
+
+    boolean isValid() {
+        return subject != null && (email != null || username != null);
+    }
+
+    private void normalize() {
+        subject = trimOrNull(subject);
+        email = trimOrNull(email);
+        username = trimOrNull(username);
+    }
+
+    private static String[] splitCsv(String csv) {
+        List<String> fields = new ArrayList<>(3);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < csv.length(); i++) {
+            char c = csv.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < csv.length() && csv.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    private static String trimOrNull(String v) {
+        return (v == null || v.isBlank()) ? null : v.trim();
+    }
+}
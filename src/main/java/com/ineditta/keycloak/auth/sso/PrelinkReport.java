@@ -0,0 +1,65 @@
+package com.ineditta.keycloak.auth.sso;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resultado de um pré-vínculo em lote: contagem por resultado e as linhas que não foram vinculadas.
+ */
+public class PrelinkReport {
+
+    public enum Outcome {
+        LINKED, ALREADY_LINKED, NOT_FOUND, CONFLICT, DISABLED, INVALID, ERROR
+    }
+
+    static final int MAX_PROBLEMS = 1000;
+
+    public boolean dryRun;
+    public int lines;
+    public Map<Outcome, Integer> outcomes = new EnumMap<>(Outcome.class);
+    public List<Problem> problems = new ArrayList<>();
+    public boolean problemsTruncated;
+    /** Primeira linha não processada por causa do limite de linhas por requisição, ou {@code null}. */
+    public Integer nextLine;
+
+    PrelinkReport(boolean dryRun) {
+        this.dryRun = dryRun;
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.put(outcome, 0);
+        }
+    }
+
+    void record(PrelinkEntry entry, Outcome outcome, String detail) {
+        outcomes.merge(outcome, 1, Integer::sum);
+        if (outcome == Outcome.LINKED || outcome == Outcome.ALREADY_LINKED) {
+            return;
+        }
+        if (problems.size() < MAX_PROBLEMS) {
+            problems.add(new Problem(entry, outcome, detail));
+        } else {
+            problemsTruncated = true;
+        }
+    }
+
+    public static class Problem {
+        public int line;
+        public String subject;
+        public String email;
+        public String username;
+        public Outcome outcome;
+        public String detail;
+
+        public Problem() {}
+
+        Problem(PrelinkEntry entry, Outcome outcome, String detail) {
+            this.line = entry.line;
+            this.subject = entry.subject;
+            this.email = entry.email;
+            this.username = entry.username;
+            this.outcome = outcome;
+            this.detail = detail;
+        }
+    }
+}
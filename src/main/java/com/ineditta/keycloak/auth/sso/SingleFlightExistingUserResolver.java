@@ -0,0 +1,149 @@
+package com.ineditta.keycloak.auth.sso;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Limita a carga da cadeia de busca no banco quando muitos usuários fazem o primeiro login pelo IdP ao mesmo tempo.
+ * <ul>
+ * <li>Logins simultâneos da mesma identidade (mesmos valores procurados) compartilham uma busca: o primeiro busca,
+ * os outros esperam e só carregam os usuários encontrados pelo id, pelo cache de usuários do Keycloak.</li>
+ * <li>As buscas do nó passam por um semáforo justo compartilhado; quem não consegue vaga em {@code waitMillis}
+ * recebe {@link ExistingUserLookupBusyException} em vez de esperar por uma conexão do pool do banco.</li>
+ * </ul>
+ */
+public class SingleFlightExistingUserResolver implements ExistingUserResolver {
+
+    private final UserMatcherChain chain;
+    private final Semaphore permits;
+    private final long waitMillis;
+
+    private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param permits vagas para buscas do nó, compartilhadas entre cadeias, ou {@code null} para não limitar
+     */
+    public SingleFlightExistingUserResolver(UserMatcherChain chain, Semaphore permits, long waitMillis) {
+        this.chain = chain;
+        this.permits = permits;
+        this.waitMillis = waitMillis;
+    }
+
+    @Override
+    public List<UserModel> resolve(KeycloakSession session, RealmModel realm, MatchRequest request) {
+        String key = realm.getId() + '\n' + chain.cacheKey(request);
+        Flight mine = new Flight(System.currentTimeMillis() + waitMillis);
+        Flight leader = inFlight.putIfAbsent(key, mine);
+        if (leader != null) {
+            List<UserModel> shared = await(session, realm, leader);
+            return shared != null ? shared : lookup(session, realm, request, null);
+        }
+
+        try {
+            List<UserModel> found = lookup(session, realm, request, mine);
+            mine.ids.complete(found.stream().map(UserModel::getId).toList());
+            return found;
+        } catch (RuntimeException e) {
+            mine.ids.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Espera a busca em andamento até o prazo dela: quem chega depois não ganha um prazo novo. O prazo vale para a
+     * espera por vaga e recomeça quando a busca consegue a vaga, então uma busca que começou tarde ainda tem
+     * {@code waitMillis} para rodar. Se ela não conseguiu vaga, quem espera também não tenta, para não formar uma fila
+     * de buscas repetidas justamente quando o nó está cheio.
+     *
+     * @return os usuários encontrados pela busca em andamento, ou {@code null} se ela falhou por outro motivo ou um
+     * deles sumiu
+     */
+    private List<UserModel> await(KeycloakSession session, RealmModel realm, Flight leader) {
+        List<String> ids;
+        try {
+            ids = awaitIds(leader);
+        } catch (TimeoutException e) {
+            throw new ExistingUserLookupBusyException("Timed out waiting for a concurrent lookup of the same identity");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ExistingUserLookupBusyException) {
+                throw new ExistingUserLookupBusyException("A concurrent lookup of the same identity found the node busy");
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExistingUserLookupBusyException("Interrupted waiting for a concurrent lookup of the same identity");
+        }
+
+        List<UserModel> users = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            UserModel user = session.users().getUserById(realm, id);
+            if (user == null) {
+                return null;
+            }
+            users.add(user);
+        }
+        return users;
+    }
+
+    private static List<String> awaitIds(Flight leader)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        while (true) {
+            try {
+                return leader.ids.get(Math.max(0, leader.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // o prazo pode ter recomeçado enquanto esperávamos, quando a busca conseguiu a vaga
+                if (leader.deadline <= System.currentTimeMillis()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param flight a busca compartilhada que esta consulta atende, ou {@code null} para uma consulta própria
+     */
+    private List<UserModel> lookup(KeycloakSession session, RealmModel realm, MatchRequest request, Flight flight) {
+        if (permits == null) {
+            return chain.resolve(session, realm, request);
+        }
+        try {
+            if (!permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                throw new ExistingUserLookupBusyException("Too many concurrent existing user lookups");
+            }
+            if (flight != null) {
+                flight.deadline = System.currentTimeMillis() + waitMillis;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExistingUserLookupBusyException("Interrupted waiting for an existing user lookup");
+        }
+        try {
+            return chain.resolve(session, realm, request);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static final class Flight {
+        private final CompletableFuture<List<String>> ids = new CompletableFuture<>();
+        // até a vaga: o fim da espera por ela; depois: waitMillis a partir da vaga
+        private volatile long deadline;
+
+        Flight(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.ineditta.keycloak.auth.sso;
+
+import java.util.List;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Um passo da cadeia de busca do usuário local, por exemplo pelo email. Ver {@link UserMatchers}.
+ */
+public interface UserMatcher {
+
+    /**
+     * Nome do passo na configuração e nas métricas, por exemplo {@code attribute:employeeId}.
+     */
+    String name();
+
+    /**
+     * Como o passo é escrito na configuração, na forma normalizada; por padrão o {@link #name()}.
+     */
+    default String spec() {
+        return name();
+    }
+
+    /**
+     * @return o valor procurado por este passo, ou {@code null} se a identidade não tiver um (o passo é pulado)
+     */
+    String input(MatchRequest request);
+
+    /**
+     * @return nenhum, um ou (em conflito) dois usuários com o valor
+     */
+    List<UserModel> find(KeycloakSession session, RealmModel realm, String input);
+
+    /**
+     * Se o usuário ainda tem o valor, para conferir resultados guardados em cache. Deve responder pelo usuário já
+     * carregado e pelo cache de usuários do Keycloak, que também guarda os vínculos do usuário com IdPs; quando o
+     * cache ainda não tem o dado, no máximo uma consulta pelo id do usuário, nunca uma busca por valor.
+     */
+    boolean matches(KeycloakSession session, RealmModel realm, UserModel user, String input);
+}
@@ -0,0 +1,74 @@
+package com.ineditta.keycloak.auth.sso;
+
+import java.util.List;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import com.mesutpiskin.keycloak.auth.email.AuthenticatorMetrics;
+import com.mesutpiskin.keycloak.auth.email.AuthenticatorMetrics.MatcherCounters;
+
+/**
+ * Tenta os passos na ordem configurada e para no primeiro que acha alguém: um usuário é o match, mais de um é
+ * conflito. Montada uma vez por configuração; cada passo conta acertos, erros e conflitos nas métricas.
+ */
+public class UserMatcherChain implements ExistingUserResolver {
+
+    private final UserMatcher[] matchers;
+    private final MatcherCounters[] counters;
+
+    public UserMatcherChain(List<UserMatcher> matchers) {
+        this.matchers = matchers.toArray(new UserMatcher[0]);
+        this.counters = new MatcherCounters[this.matchers.length];
+        for (int i = 0; i < this.matchers.length; i++) {
+            counters[i] = AuthenticatorMetrics.matcherLookups(this.matchers[i].name());
+        }
+    }
+
+    @Override
+    public List<UserModel> resolve(KeycloakSession session, RealmModel realm, MatchRequest request) {
+        for (int i = 0; i < matchers.length; i++) {
+            String input = matchers[i].input(request);
+            if (input == null) {
+                continue;
+            }
+            List<UserModel> found = matchers[i].find(session, realm, input);
+            counters[i].record(found.size());
+            if (!found.isEmpty()) {
+                return found;
+            }
+        }
+        return List.of();
+    }
+
+    /**
+     * Os valores que a cadeia procuraria para a identidade, para servir de chave de cache. Cada valor vai prefixado
+     * pelo tamanho e um valor ausente vira {@code -}, então identidades diferentes nunca têm a mesma chave.
+     */
+    String cacheKey(MatchRequest request) {
+        StringBuilder key = new StringBuilder();
+        for (UserMatcher matcher : matchers) {
+            String input = matcher.input(request);
+            if (input == null) {
+                key.append('-');
+            } else {
+                key.append(input.length()).append(':').append(input);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Se algum passo ainda associaria o usuário à identidade.
+     */
+    boolean matches(KeycloakSession session, RealmModel realm, UserModel user, MatchRequest request) {
+        for (UserMatcher matcher : matchers) {
+            String input = matcher.input(request);
+            if (input != null && matcher.matches(session, realm, user, input)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,239 @@
+package com.ineditta.keycloak.auth.sso;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Os passos disponíveis para a cadeia de busca, configurados como lista separada por vírgulas, na ordem em que são
+ * tentados:
+ * <ul>
+ * <li>{@code email}: email normalizado (trim e minúsculas), uma consulta por {@code getUserByEmail}. Só quando ela
+ * acha mais de um usuário (realm com emails duplicados permitidos), a busca exata pela coluna de email (indexada)
+ * para no segundo resultado, o que basta para identificar um conflito. A busca pelo atributo {@code email}, que varre
+ * os atributos dos usuários, só é feita com {@code emailAttributeFallback} ligado.</li>
+ * <li>{@code username}: username do IdP.</li>
+ * <li>{@code attribute:<local>} ou {@code attribute:<local>=<idp>}: atributo do usuário local igual ao atributo
+ * recebido do IdP (por padrão de mesmo nome), por exemplo a matrícula. A busca é exata, pelo índice de nome e valor
+ * dos atributos, e o limite de dois resultados vai para o SQL.</li>
+ * <li>{@code idp:<alias>}: usuário já vinculado a outro IdP com o mesmo subject, por exemplo o IdP antigo numa
+ * migração.</li>
+ * </ul>
+ */
+public final class UserMatchers {
+
+    private static final Logger LOG = Logger.getLogger(UserMatchers.class);
+
+    public static final String DEFAULT_CHAIN = "email,username";
+
+    private UserMatchers() {
+    }
+
+    /**
+     * Lê a configuração da cadeia. Passos inválidos são ignorados com um aviso no log.
+     */
+    public static List<UserMatcher> parse(String spec, boolean emailAttributeFallback) {
+        return parse(spec, emailAttributeFallback, false);
+    }
+
+    /**
+     * Lê a configuração da cadeia.
+     *
+     * @param strict recusa passos inválidos com {@link IllegalArgumentException} em vez de ignorá-los
+     */
+    public static List<UserMatcher> parse(String spec, boolean emailAttributeFallback, boolean strict) {
+        List<UserMatcher> matchers = new ArrayList<>();
+        for (String entry : spec.split(",|##")) {
+            String trimmed = entry.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int colon = trimmed.indexOf(':');
+            String type = (colon < 0 ? trimmed : trimmed.substring(0, colon)).toLowerCase(Locale.ROOT);
+            String argument = colon < 0 ? null : trimmed.substring(colon + 1).trim();
+
+            UserMatcher matcher = null;
+            if ("email".equals(type) && argument == null) {
+                matcher = new Email(emailAttributeFallback);
+            } else if ("username".equals(type) && argument == null) {
+                matcher = new Username();
+            } else if ("attribute".equals(type) && argument != null && !argument.isEmpty()) {
+                int equals = argument.indexOf('=');
+                String local = (equals < 0 ? argument : argument.substring(0, equals)).trim();
+                String idp = (equals < 0 ? argument : argument.substring(equals + 1)).trim();
+                if (!local.isEmpty() && !idp.isEmpty()) {
+                    matcher = new Attribute(local, idp);
+                }
+            } else if ("idp".equals(type) && argument != null && !argument.isEmpty()) {
+                matcher = new IdpSubject(argument);
+            }
+
+            if (matcher == null && strict) {
+                throw new IllegalArgumentException("Invalid user matcher '" + trimmed + "'");
+            } else if (matcher == null) {
+                LOG.warnf("Ignoring invalid user matcher '%s'", trimmed);
+            } else {
+                matchers.add(matcher);
+            }
+        }
+        return matchers;
+    }
+
+    /**
+     * A cadeia na forma normalizada da configuração, que identifica cadeias equivalentes.
+     */
+    static String spec(List<UserMatcher> matchers) {
+        return String.join(",", matchers.stream().map(UserMatcher::spec).toList());
+    }
+
+    static String normalizeEmail(String email) {
+        if (email == null || email.isBlank()) {
+            return null;
+        }
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    static final class Email implements UserMatcher {
+        private static final String EMAIL_ATTRIBUTE = "email";
+
+        private final boolean attributeFallback;
+
+        Email(boolean attributeFallback) {
+            this.attributeFallback = attributeFallback;
+        }
+
+        @Override
+        public String name() {
+            return "email";
+        }
+
+        @Override
+        public String input(MatchRequest request) {
+            return normalizeEmail(request.getEmail());
+        }
+
+        @Override
+        public List<UserModel> find(KeycloakSession session, RealmModel realm, String email) {
+            try {
+                UserModel byEmail = session.users().getUserByEmail(realm, email);
+                if (byEmail != null) {
+                    return List.of(byEmail);
+                }
+            } catch (ModelDuplicateException e) {
+                // realm com emails duplicados permitidos: a busca exata pela coluna (indexada) devolve o conflito,
+                // parando no segundo resultado
+                return session.users().searchForUserStream(realm,
+                        Map.of(UserModel.EMAIL, email, UserModel.EXACT, Boolean.TRUE.toString()), 0, 2).toList();
+            }
+
+            if (!attributeFallback) {
+                return List.of();
+            }
+            return session.users().searchForUserByUserAttributeStream(realm, EMAIL_ATTRIBUTE, email).limit(2).toList();
+        }
+
+        @Override
+        public boolean matches(KeycloakSession session, RealmModel realm, UserModel user, String email) {
+            return user.getEmail() != null && email.equals(user.getEmail().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    static final class Username implements UserMatcher {
+        @Override
+        public String name() {
+            return "username";
+        }
+
+        @Override
+        public String input(MatchRequest request) {
+            return request.getUsername();
+        }
+
+        @Override
+        public List<UserModel> find(KeycloakSession session, RealmModel realm, String username) {
+            UserModel byUsername = session.users().getUserByUsername(realm, username);
+            return byUsername != null ? List.of(byUsername) : List.of();
+        }
+
+        @Override
+        public boolean matches(KeycloakSession session, RealmModel realm, UserModel user, String username) {
+            return username.equalsIgnoreCase(user.getUsername());
+        }
+    }
+
+    static final class Attribute implements UserMatcher {
+        private final String localName;
+        private final String idpName;
+
+        Attribute(String localName, String idpName) {
+            this.localName = localName;
+            this.idpName = idpName;
+        }
+
+        @Override
+        public String name() {
+            return "attribute:" + localName;
+        }
+
+        @Override
+        public String spec() {
+            return name() + '=' + idpName;
+        }
+
+        @Override
+        public String input(MatchRequest request) {
+            return request.getAttribute(idpName);
+        }
+
+        @Override
+        public List<UserModel> find(KeycloakSession session, RealmModel realm, String value) {
+            // busca exata com limite no SQL: para no segundo resultado, o que basta para identificar um conflito
+            return session.users().searchForUserStream(realm,
+                    Map.of(localName, value, UserModel.EXACT, Boolean.TRUE.toString()), 0, 2).toList();
+        }
+
+        @Override
+        public boolean matches(KeycloakSession session, RealmModel realm, UserModel user, String value) {
+            return user.getAttributeStream(localName).anyMatch(value::equals);
+        }
+    }
+
+    static final class IdpSubject implements UserMatcher {
+        private final String alias;
+
+        IdpSubject(String alias) {
+            this.alias = alias;
+        }
+
+        @Override
+        public String name() {
+            return "idp:" + alias;
+        }
+
+        @Override
+        public String input(MatchRequest request) {
+            return request.getSubject();
+        }
+
+        @Override
+        public List<UserModel> find(KeycloakSession session, RealmModel realm, String subject) {
+            UserModel linked = session.users().getUserByFederatedIdentity(realm, new FederatedIdentityModel(alias, subject, null));
+            return linked != null ? List.of(linked) : List.of();
+        }
+
+        @Override
+        public boolean matches(KeycloakSession session, RealmModel realm, UserModel user, String subject) {
+            // os vínculos do usuário ficam no cache de usuários junto com ele: no máximo uma consulta pelo id
+            FederatedIdentityModel link = session.users().getFederatedIdentity(realm, user, alias);
+            return link != null && subject.equals(link.getUserId());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import org.keycloak.models.AuthenticatorConfigModel;
+
+/**
+ * Caches a value compiled from an {@link AuthenticatorConfigModel}, keyed by the config id.
+ * <p>
+ * The compiled value is reused for as long as the config holds the same entries; any change to the config
+ * makes the next lookup compile it again. Comparing the handful of config entries is far cheaper than
+ * compiling them.
+ */
+public class AuthenticatorConfigCache<T> {
+
+    private final ConcurrentMap<String, Entry<T>> entries = new ConcurrentHashMap<>();
+
+    private final Function<Map<String, String>, T> compiler;
+
+    public AuthenticatorConfigCache(Function<Map<String, String>, T> compiler) {
+        this.compiler = compiler;
+    }
+
+    public T get(AuthenticatorConfigModel config) {
+        Map<String, String> raw = config.getConfig() != null ? config.getConfig() : Collections.emptyMap();
+        String id = config.getId();
+        if (id == null) {
+            return compiler.apply(raw);
+        }
+
+        Entry<T> entry = entries.get(id);
+        if (entry != null && entry.snapshot.equals(raw)) {
+            return entry.value;
+        }
+
+        T value = compiler.apply(raw);
+        entries.put(id, new Entry<>(raw, value));
+        return value;
+    }
+
+    public void invalidate(String configId) {
+        entries.remove(configId);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private static class Entry<T> {
+        private final Map<String, String> snapshot;
+        private final T value;
+
+        Entry(Map<String, String> source, T value) {
+            this.snapshot = new HashMap<>(source);
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.OtpDecision;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Counters and timers of the authenticators in this extension.
+ * <p>
+ * Meters are registered with Micrometer's global registry, to which Keycloak adds its own registry when started
+ * with {@code --metrics-enabled=true}; they are then exported on the management interface's {@code /metrics}
+ * endpoint next to Keycloak's metrics. Without metrics enabled, recording is a no-op.
+ * <p>
+ * All tag values come from fixed sets, so the number of time series depends neither on user input nor on admin
+ * config: matcher names such as {@code attribute:employeeId} are reduced to their type. Meters are created up front,
+ * so recording does not look anything up.
+ */
+public final class AuthenticatorMetrics {
+
+    public enum VerifyOutcome {
+        VALID, INVALID, EXPIRED, LOCKED
+    }
+
+    public enum Throttle {
+        RESEND_INTERVAL, RATE_LIMITED, UNAVAILABLE
+    }
+
+    public enum BrokerMatch {
+        LINKED, NOT_FOUND, CONFLICT, DISABLED, NO_BROKER_CONTEXT, BUSY
+    }
+
+    public enum SelectedMethod {
+        EMAIL, APP, INVALID
+    }
+
+    private static final MeterRegistry REGISTRY = Metrics.globalRegistry;
+
+    private static final String PREFIX = "keycloak.extension.";
+
+    private static final Set<String> MATCHER_TYPES = Set.of("email", "username", "attribute", "idp");
+
+    private static final Counter CODES_ISSUED = Counter.builder(PREFIX + "email.otp.codes.issued")
+            .description("Email codes generated and handed over for delivery")
+            .register(REGISTRY);
+
+    private static final Map<VerifyOutcome, Counter> CODES_VERIFIED = counters(VerifyOutcome.class,
+            PREFIX + "email.otp.codes.verified", "outcome", "Entered email codes by outcome");
+
+    private static final Map<Throttle, Counter> SENDS_THROTTLED = counters(Throttle.class,
+            PREFIX + "email.otp.sends.throttled", "reason", "Email codes not sent, by reason");
+
+    private static final Timer SEND_SUCCESS = sendTimer("success");
+    private static final Timer SEND_FAILURE = sendTimer("failure");
+
+    private static final Map<BrokerMatch, Counter> BROKER_MATCHES = counters(BrokerMatch.class,
+            PREFIX + "broker.existing.user.matches", "outcome", "First broker logins by local user match outcome");
+
+    private static final Map<SelectedMethod, Counter> METHODS_SELECTED = counters(SelectedMethod.class,
+            PREFIX + "2fa.methods.selected", "method", "Second factor methods chosen on the selection form");
+
+    private static final Map<SelectedMethod, Counter> METHODS_AUTO_SELECTED = counters(SelectedMethod.class,
+            PREFIX + "2fa.methods.autoselected", "method", "Second factor methods chosen without showing the selection form");
+
+    private AuthenticatorMetrics() {
+    }
+
+    public static void codeIssued() {
+        CODES_ISSUED.increment();
+    }
+
+    public static void codeVerified(VerifyOutcome outcome) {
+        CODES_VERIFIED.get(outcome).increment();
+    }
+
+    public static void sendThrottled(Throttle reason) {
+        SENDS_THROTTLED.get(reason).increment();
+    }
+
+    public static void sendCompleted(boolean success, long nanos) {
+        (success ? SEND_SUCCESS : SEND_FAILURE).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void brokerMatch(BrokerMatch outcome) {
+        BROKER_MATCHES.get(outcome).increment();
+    }
+
+    public static void methodSelected(SelectedMethod method) {
+        METHODS_SELECTED.get(method).increment();
+    }
+
+    public static void methodAutoSelected(SelectedMethod method) {
+        METHODS_AUTO_SELECTED.get(method).increment();
+    }
+
+    /**
+     * Counters of the decisions made by one rule of the conditional authenticator, created when a config is compiled.
+     */
+    public static DecisionCounters decisions(String rule) {
+        return new DecisionCounters(rule);
+    }
+
+    /**
+     * Counters of one step of the existing user matcher chain, created when a chain is compiled. Steps of the same
+     * type share them: the tag is the type of the step, e.g. {@code attribute} for {@code attribute:employeeId}, or
+     * {@code custom} for steps of other types.
+     */
+    public static MatcherCounters matcherLookups(String matcher) {
+        int colon = matcher.indexOf(':');
+        String type = (colon < 0 ? matcher : matcher.substring(0, colon)).toLowerCase(Locale.ROOT);
+        return new MatcherCounters(MATCHER_TYPES.contains(type) ? type : "custom");
+    }
+
+    /**
+     * Exposes the state of a provider's dispatcher and circuit breaker. Meters only hold weak references, so they
+     * stop reporting once the provider is closed.
+     */
+    static void bind(String providerId, EmailDispatcher dispatcher, EmailCircuitBreaker circuitBreaker) {
+        FunctionCounter.builder(PREFIX + "email.otp.sends.inline", dispatcher, EmailDispatcher::getSentInlineCount)
+                .description("Email codes sent on the request thread because the dispatch queue was full")
+                .tag("provider", providerId)
+                .register(REGISTRY);
+        Gauge.builder(PREFIX + "email.otp.dispatch.pending", dispatcher, EmailDispatcher::getPendingCount)
+                .description("Email codes waiting for a dispatch thread")
+                .tag("provider", providerId)
+                .register(REGISTRY);
+        Gauge.builder(PREFIX + "email.otp.breaker.open", circuitBreaker, EmailCircuitBreaker::getOpenCount)
+                .description("Realms whose circuit breaker stops email codes from being sent")
+                .tag("provider", providerId)
+                .register(REGISTRY);
+    }
+
+    private static Timer sendTimer(String outcome) {
+        return Timer.builder(PREFIX + "email.otp.send")
+                .description("Time to render and hand an email code to the mail server")
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(REGISTRY);
+    }
+
+    private static <E extends Enum<E>> Map<E, Counter> counters(Class<E> type, String name, String tag, String description) {
+        Map<E, Counter> counters = new EnumMap<>(type);
+        for (E value : type.getEnumConstants()) {
+            counters.put(value, Counter.builder(name)
+                    .description(description)
+                    .tag(tag, tagValue(value))
+                    .register(REGISTRY));
+        }
+        return counters;
+    }
+
+    private static String tagValue(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+
+    public static final class DecisionCounters {
+        private final Counter skip;
+        private final Counter show;
+
+        private DecisionCounters(String rule) {
+            this.skip = decisionCounter(rule, "skip");
+            this.show = decisionCounter(rule, "show");
+        }
+
+        void record(OtpDecision decision) {
+            (decision == OtpDecision.SKIP_OTP ? skip : show).increment();
+        }
+
+        private static Counter decisionCounter(String rule, String decision) {
+            return Counter.builder(PREFIX + "email.otp.conditional.decisions")
+                    .description("Decisions of the conditional email authenticator, by the rule that decided")
+                    .tag("rule", rule)
+                    .tag("decision", decision)
+                    .register(REGISTRY);
+        }
+    }
+
+    public static final class MatcherCounters {
+        private final Counter hit;
+        private final Counter miss;
+        private final Counter conflict;
+
+        private MatcherCounters(String matcher) {
+            this.hit = lookupCounter(matcher, "hit");
+            this.miss = lookupCounter(matcher, "miss");
+            this.conflict = lookupCounter(matcher, "conflict");
+        }
+
+        public void record(int found) {
+            (found == 0 ? miss : found == 1 ? hit : conflict).increment();
+        }
+
+        private static Counter lookupCounter(String matcher, String result) {
+            return Counter.builder(PREFIX + "broker.existing.user.matcher.lookups")
+                    .description("Local user lookups of the first broker login matcher chain, by matcher and result")
+                    .tag("matcher", matcher)
+                    .tag("result", result)
+                    .register(REGISTRY);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.Map;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+/**
+ * Fixed window counter shared by all cluster nodes, kept in Keycloak's single-use object store
+ * (the replicated {@code actionTokens} cache in a clustered setup).
+ * <p>
+ * Each key has one entry per window holding the count, which expires with the window, so an event costs a read
+ * and a write. The store has no atomic increment: events for the same key that arrive at the same moment on
+ * different threads or nodes may both be counted as one, so a burst can exceed the limit by the number of
+ * concurrent requests. That is enough to bound outbound mail.
+ */
+public class ClusterSendRateLimiter implements SendRateLimiter {
+
+    private static final String PREFIX = "email-otp-rate:";
+
+    private static final String COUNT = "count";
+
+    @Override
+    public boolean tryAcquire(KeycloakSession session, String key, int limit, long windowMillis) {
+        SingleUseObjectProvider store = session.singleUseObjects();
+        long now = System.currentTimeMillis();
+        long window = now / windowMillis;
+        String windowKey = PREFIX + key + ':' + window;
+
+        int count = count(store.get(windowKey));
+        if (count >= limit) {
+            return false;
+        }
+        long lifespanSeconds = Math.max(1, ((window + 1) * windowMillis - now + 999) / 1000);
+        store.put(windowKey, lifespanSeconds, Map.of(COUNT, Integer.toString(count + 1)));
+        return true;
+    }
+
+    @Override
+    public boolean isLimited(KeycloakSession session, String key, int limit, long windowMillis) {
+        long window = System.currentTimeMillis() / windowMillis;
+        return count(session.singleUseObjects().get(PREFIX + key + ':' + window)) >= limit;
+    }
+
+    private static int count(Map<String, String> notes) {
+        if (notes == null || notes.get(COUNT) == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(notes.get(COUNT));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
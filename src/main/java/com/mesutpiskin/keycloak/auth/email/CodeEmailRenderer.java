@@ -0,0 +1,245 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.keycloak.Config;
+import org.keycloak.common.util.SecretGenerator;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.theme.FreeMarkerException;
+import org.keycloak.theme.KeycloakSanitizerMethod;
+import org.keycloak.theme.Theme;
+import org.keycloak.theme.beans.MessageFormatterMethod;
+import org.keycloak.theme.freemarker.FreeMarkerProvider;
+
+/**
+ * Renders the code email (subject, text and html parts) from the realm's email theme.
+ * <p>
+ * Unlike {@link org.keycloak.email.EmailTemplateProvider} this does not depend on the HTTP request of the
+ * current session: the locale is resolved by the caller, so rendering can happen on a background session.
+ * <p>
+ * Only the code and the username differ between emails of the same realm, theme, locale and ttl. The templates are
+ * therefore rendered once per such combination with placeholder tokens in place of the code and username, split at
+ * the tokens, and later emails only splice in the values. Skeletons are kept for {@code templateCacheSeconds} and
+ * not at all while Keycloak's template cache is disabled, so theme changes show up like for other emails. Templates
+ * that transform the code or username (e.g. {@code ?upper_case}) cannot be split and are rendered for every email.
+ */
+public class CodeEmailRenderer {
+
+    static final String SUBJECT_KEY = "emailCodeSubject";
+
+    static final String TEMPLATE = "code-email.ftl";
+
+    private static final int MAX_SKELETONS = 1000;
+
+    private static final char[] LOWER_ALPHANUMERIC = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
+    private final long cacheMillis;
+
+    private final ConcurrentMap<String, Skeleton> skeletons = new ConcurrentHashMap<>();
+
+    // letters and digits only, so that escaping and sanitizing leave them untouched
+    private final String codeToken = "emailotpcode" + SecretGenerator.getInstance().randomString(16, LOWER_ALPHANUMERIC);
+    private final String usernameToken = "emailotpuser" + SecretGenerator.getInstance().randomString(16, LOWER_ALPHANUMERIC);
+
+    public CodeEmailRenderer() {
+        this(0);
+    }
+
+    /**
+     * @param cacheSeconds how long a rendered skeleton is reused, 0 to render every email
+     */
+    public CodeEmailRenderer(int cacheSeconds) {
+        boolean cached = cacheSeconds > 0 && Config.scope("theme").getBoolean("cacheTemplates", true);
+        this.cacheMillis = cached ? cacheSeconds * 1000L : 0L;
+    }
+
+    public RenderedEmail render(KeycloakSession session, RealmModel realm, Locale locale,
+                                String username, String code, int ttl) throws EmailException {
+        try {
+            Theme theme = session.theme().getTheme(Theme.Type.EMAIL);
+            String realmName = realm.getDisplayName() != null ? realm.getDisplayName() : realm.getName();
+            if (cacheMillis <= 0) {
+                return renderTemplates(session, theme, realm, locale, realmName, username, code, ttl);
+            }
+
+            String key = realm.getId() + '/' + theme.getName() + '/' + locale.toLanguageTag() + '/' + ttl + '/' + realmName;
+            long now = System.currentTimeMillis();
+            Skeleton skeleton = skeletons.get(key);
+            if (skeleton == null || skeleton.expiresAt <= now) {
+                RenderedEmail template = renderTemplates(session, theme, realm, locale, realmName, usernameToken, codeToken, ttl);
+                skeleton = new Skeleton(template, now + cacheMillis);
+                if (skeletons.size() >= MAX_SKELETONS) {
+                    skeletons.clear();
+                }
+                skeletons.put(key, skeleton);
+            }
+
+            if (!skeleton.splittable) {
+                return renderTemplates(session, theme, realm, locale, realmName, username, code, ttl);
+            }
+            return new RenderedEmail(skeleton.subject,
+                    skeleton.textBody.fill(code, username),
+                    skeleton.htmlBody.fill(code, escapeHtml(username)));
+        } catch (IOException | FreeMarkerException e) {
+            throw new EmailException("Failed to render access code email", e);
+        }
+    }
+
+    public void clear() {
+        skeletons.clear();
+    }
+
+    private RenderedEmail renderTemplates(KeycloakSession session, Theme theme, RealmModel realm, Locale locale,
+                                          String realmName, String username, String code, int ttl)
+            throws IOException, FreeMarkerException {
+        Properties messages = theme.getEnhancedMessages(realm, locale);
+
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("username", username);
+        attributes.put("code", code);
+        attributes.put("ttl", ttl);
+        attributes.put("locale", locale);
+        attributes.put("realmName", realmName);
+        attributes.put("msg", new MessageFormatterMethod(locale, messages));
+        attributes.put("properties", theme.getProperties());
+        attributes.put("kcSanitize", new KeycloakSanitizerMethod());
+
+        FreeMarkerProvider freeMarker = session.getProvider(FreeMarkerProvider.class);
+        String subject = new MessageFormat(messages.getProperty(SUBJECT_KEY, SUBJECT_KEY), locale)
+                .format(new Object[] { realmName });
+        String textBody = freeMarker.processTemplate(attributes, "text/" + TEMPLATE, theme);
+        String htmlBody = freeMarker.processTemplate(attributes, "html/" + TEMPLATE, theme);
+        return new RenderedEmail(subject, textBody, htmlBody);
+    }
+
+    private static String escapeHtml(String value) {
+        if (value == null) {
+            return null;
+        }
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement;
+            switch (c) {
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '&': replacement = "&amp;"; break;
+                case '"': replacement = "&quot;"; break;
+                case '\'': replacement = "&#39;"; break;
+                default: replacement = null;
+            }
+            if (replacement != null && sb == null) {
+                sb = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            if (sb != null) {
+                if (replacement != null) {
+                    sb.append(replacement);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb != null ? sb.toString() : value;
+    }
+
+    private class Skeleton {
+        private final String subject;
+        private final Parts textBody;
+        private final Parts htmlBody;
+        private final boolean splittable;
+        private final long expiresAt;
+
+        Skeleton(RenderedEmail template, long expiresAt) {
+            this.subject = template.getSubject();
+            this.textBody = new Parts(template.getTextBody());
+            this.htmlBody = new Parts(template.getHtmlBody());
+            this.splittable = textBody.clean && htmlBody.clean;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private boolean containsToken(String lowerCased) {
+        return lowerCased.contains(codeToken) || lowerCased.contains(usernameToken);
+    }
+
+    /**
+     * A rendered body split at the placeholder tokens: {@code literals[i]} is followed by the value of
+     * {@code slots[i]}, the last literal by nothing.
+     */
+    private class Parts {
+        private static final int CODE = 0;
+        private static final int USERNAME = 1;
+
+        private final String[] literals;
+        private final int[] slots;
+        private final int literalLength;
+        private final boolean clean;
+
+        Parts(String rendered) {
+            List<String> literals = new ArrayList<>();
+            List<Integer> slots = new ArrayList<>();
+            int from = 0;
+            while (true) {
+                int codeAt = rendered.indexOf(codeToken, from);
+                int usernameAt = rendered.indexOf(usernameToken, from);
+                int at = codeAt < 0 ? usernameAt : usernameAt < 0 ? codeAt : Math.min(codeAt, usernameAt);
+                if (at < 0) {
+                    break;
+                }
+                literals.add(rendered.substring(from, at));
+                slots.add(at == codeAt ? CODE : USERNAME);
+                from = at + (at == codeAt ? codeToken : usernameToken).length();
+            }
+            literals.add(rendered.substring(from));
+
+            this.literals = literals.toArray(new String[0]);
+            this.slots = slots.stream().mapToInt(Integer::intValue).toArray();
+            this.literalLength = literals.stream().mapToInt(String::length).sum();
+            // a token left in another form means the template transformed the value, which splicing cannot reproduce
+            this.clean = literals.stream().noneMatch(literal -> containsToken(literal.toLowerCase(Locale.ROOT)));
+        }
+
+        String fill(String code, String username) {
+            StringBuilder sb = new StringBuilder(literalLength + slots.length * 32);
+            for (int i = 0; i < slots.length; i++) {
+                sb.append(literals[i]).append(slots[i] == CODE ? code : username);
+            }
+            return sb.append(literals[slots.length]).toString();
+        }
+    }
+
+    public static class RenderedEmail {
+        private final String subject;
+        private final String textBody;
+        private final String htmlBody;
+
+        public RenderedEmail(String subject, String textBody, String htmlBody) {
+            this.subject = subject;
+            this.textBody = textBody;
+            this.htmlBody = htmlBody;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public String getTextBody() {
+            return textBody;
+        }
+
+        public String getHtmlBody() {
+            return htmlBody;
+        }
+    }
+}
@@ -17,8 +17,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-import org.keycloak.authentication.Authenticator;
-import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.provider.ProviderConfigProperty;
 
 public class ConditionalEmailAuthenticatorFormFactory extends EmailAuthenticatorFormFactory {
@@ -94,6 +93,15 @@ public class ConditionalEmailAuthenticatorFormFactory extends EmailAuthenticator
          defaultOutcome.setHelpText("What to do in case of every check abstains. Defaults to force OTP authentication.");
          list.add(defaultOutcome);
 
+         ProviderConfigProperty roleMembershipCacheTtl = new ProviderConfigProperty();
+         roleMembershipCacheTtl.setType(STRING_TYPE);
+         roleMembershipCacheTtl.setName(ConditionalEmailAuthenticatorForm.ROLE_MEMBERSHIP_CACHE_TTL);
+         roleMembershipCacheTtl.setLabel("Role membership cache (seconds)");
+         roleMembershipCacheTtl.setHelpText("How long the result of the skip/force role check is reused for the same user. " +
+                 "Role changes take effect after at most this time. 0 disables the cache.");
+         roleMembershipCacheTtl.setDefaultValue("0");
+         list.add(roleMembershipCacheTtl);
+
         return Collections.unmodifiableList(list);
     }
     
@@ -103,7 +111,13 @@ public class ConditionalEmailAuthenticatorFormFactory extends EmailAuthenticator
     }
 
     @Override
-    public Authenticator create(KeycloakSession session) {
+    protected EmailAuthenticatorForm getAuthenticator() {
         return SINGLETON;
     }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        super.postInit(factory);
+        factory.register(SINGLETON.getRoleResolver());
+    }
 }
@@ -0,0 +1,210 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.DEFAULT_OTP_OUTCOME;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.FORCE;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.FORCE_OTP_ROLE;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.OTP_CONTROL_USER_ATTRIBUTE;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.ROLE_MEMBERSHIP_CACHE_TTL;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.SKIP;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.SKIP_OTP_ROLE;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.OtpDecision.ABSTAIN;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.OtpDecision.SHOW_OTP;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.OtpDecision.SKIP_OTP;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.OtpDecision;
+
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * The checks of a conditional email OTP config, compiled once per config revision.
+ * <p>
+ * Only the voters that are actually configured are part of the plan, in the order they are consulted:
+ * user attribute, role, request header. The first voter that doesn't abstain decides, otherwise the
+ * configured fallback does; without a fallback the OTP form is shown.
+ */
+@JBossLog
+public class ConditionalOtpPlan {
+
+    static final ConditionalOtpPlan SHOW_ALWAYS = new ConditionalOtpPlan(new Voter[0], SHOW_OTP);
+
+    private final Voter[] voters;
+    private final OtpDecision fallback;
+
+    private final AuthenticatorMetrics.DecisionCounters[] voterDecisions;
+    private final AuthenticatorMetrics.DecisionCounters fallbackDecisions;
+
+    ConditionalOtpPlan(Voter[] voters, OtpDecision fallback) {
+        this.voters = voters;
+        this.fallback = fallback;
+        this.voterDecisions = new AuthenticatorMetrics.DecisionCounters[voters.length];
+        for (int i = 0; i < voters.length; i++) {
+            voterDecisions[i] = AuthenticatorMetrics.decisions(voters[i].rule());
+        }
+        this.fallbackDecisions = AuthenticatorMetrics.decisions("fallback");
+    }
+
+    public static ConditionalOtpPlan compile(Map<String, String> config, RoleResolver roles) {
+        List<Voter> voters = new ArrayList<>(3);
+
+        String attributeName = nonBlank(config.get(OTP_CONTROL_USER_ATTRIBUTE));
+        if (attributeName != null) {
+            voters.add(new UserAttributeVoter(attributeName));
+        }
+
+        String skipRole = nonBlank(config.get(SKIP_OTP_ROLE));
+        String forceRole = nonBlank(config.get(FORCE_OTP_ROLE));
+        if (skipRole != null || forceRole != null) {
+            voters.add(new RoleVoter(roles, skipRole, forceRole, parseSeconds(config.get(ROLE_MEMBERSHIP_CACHE_TTL)) * 1000L));
+        }
+
+        HeaderRules headerRules = HeaderRules.compile(config);
+        if (!headerRules.isEmpty()) {
+            voters.add(new HeaderVoter(headerRules));
+        }
+
+        return new ConditionalOtpPlan(voters.toArray(new Voter[0]), parseOutcome(config.get(DEFAULT_OTP_OUTCOME)));
+    }
+
+    /**
+     * @return {@link OtpDecision#SKIP_OTP} or {@link OtpDecision#SHOW_OTP}, never abstains
+     */
+    OtpDecision decide(AuthenticationFlowContext context) {
+        for (int i = 0; i < voters.length; i++) {
+            OtpDecision decision = voters[i].vote(context);
+            if (decision != ABSTAIN) {
+                voterDecisions[i].record(decision);
+                return decision;
+            }
+        }
+        fallbackDecisions.record(fallback);
+        return fallback;
+    }
+
+    // the admin console stores empty strings for fields that were left empty, none of which can ever match
+    private static String nonBlank(String value) {
+        return value == null || value.isBlank() ? null : value;
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null || value.isBlank()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            log.errorf("Ignoring invalid %s '%s', role membership is not cached", ROLE_MEMBERSHIP_CACHE_TTL, value);
+            return 0;
+        }
+    }
+
+    private static OtpDecision parseOutcome(String value) {
+        if (SKIP.equals(value)) {
+            return SKIP_OTP;
+        }
+        return SHOW_OTP;
+    }
+
+    interface Voter {
+        OtpDecision vote(AuthenticationFlowContext context);
+
+        /** Name of the rule in metrics. */
+        String rule();
+    }
+
+    static class UserAttributeVoter implements Voter {
+        private final String attributeName;
+
+        UserAttributeVoter(String attributeName) {
+            this.attributeName = attributeName;
+        }
+
+        @Override
+        public String rule() {
+            return "user_attribute";
+        }
+
+        @Override
+        public OtpDecision vote(AuthenticationFlowContext context) {
+            Optional<String> value = context.getUser().getAttributeStream(attributeName).findFirst();
+            if (!value.isPresent()) {
+                return ABSTAIN;
+            }
+
+            switch (value.get().trim()) {
+                case SKIP:
+                    return SKIP_OTP;
+                case FORCE:
+                    return SHOW_OTP;
+                default:
+                    return ABSTAIN;
+            }
+        }
+    }
+
+    static class RoleVoter implements Voter {
+        private final RoleResolver roles;
+        private final String skipRole;
+        private final String forceRole;
+        private final long membershipTtlMillis;
+
+        RoleVoter(RoleResolver roles, String skipRole, String forceRole, long membershipTtlMillis) {
+            this.roles = roles;
+            this.skipRole = skipRole;
+            this.forceRole = forceRole;
+            this.membershipTtlMillis = membershipTtlMillis;
+        }
+
+        @Override
+        public String rule() {
+            return "role";
+        }
+
+        @Override
+        public OtpDecision vote(AuthenticationFlowContext context) {
+            RealmModel realm = context.getRealm();
+            UserModel user = context.getUser();
+
+            if (userHasRole(realm, user, skipRole)) {
+                return SKIP_OTP;
+            }
+
+            if (userHasRole(realm, user, forceRole)) {
+                return SHOW_OTP;
+            }
+
+            return ABSTAIN;
+        }
+
+        private boolean userHasRole(RealmModel realm, UserModel user, String roleName) {
+            return roleName != null && roles.hasRole(realm, user, roleName, membershipTtlMillis);
+        }
+    }
+
+    static class HeaderVoter implements Voter {
+        private final HeaderRules rules;
+
+        HeaderVoter(HeaderRules rules) {
+            this.rules = rules;
+        }
+
+        @Override
+        public String rule() {
+            return "header";
+        }
+
+        @Override
+        public OtpDecision vote(AuthenticationFlowContext context) {
+            //Inverted to allow white-lists, e.g. for specifying trusted remote hosts: X-Forwarded-Host: (1.2.3.4|1.2.3.5)
+            return rules.evaluate(context.getHttpRequest().getHttpHeaders().getRequestHeaders());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Drops the cached {@link CredentialTypeSummary} when a user changes credentials, email or profile during a login,
+ * e.g. in a required action.
+ */
+public class CredentialSummaryEventListenerProvider implements EventListenerProvider {
+
+    @SuppressWarnings("deprecation")
+    private static final Set<EventType> CHANGES = EnumSet.of(
+            EventType.UPDATE_CREDENTIAL, EventType.REMOVE_CREDENTIAL,
+            EventType.UPDATE_TOTP, EventType.REMOVE_TOTP, EventType.UPDATE_PASSWORD,
+            EventType.UPDATE_EMAIL, EventType.VERIFY_EMAIL, EventType.UPDATE_PROFILE);
+
+    private final KeycloakSession session;
+
+    public CredentialSummaryEventListenerProvider(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        if (event.getUserId() != null && CHANGES.contains(event.getType())) {
+            CredentialTypeSummary.invalidate(session, event.getUserId());
+        }
+    }
+
+    @Override
+    public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        // Admin requests have no login in progress
+    }
+
+    @Override
+    public void close() {
+        // NOOP
+    }
+}
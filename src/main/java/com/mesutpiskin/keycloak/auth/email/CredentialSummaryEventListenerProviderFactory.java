@@ -0,0 +1,38 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Event listener that keeps {@link CredentialTypeSummary} caches current. Add it to the realm's event listeners
+ * when users can set up credentials or change their email while logging in.
+ */
+public class CredentialSummaryEventListenerProviderFactory implements EventListenerProviderFactory {
+
+    public static final String PROVIDER_ID = "credential-summary-invalidator";
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session) {
+        return new CredentialSummaryEventListenerProvider(session);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,159 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.credential.OTPCredentialModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/**
+ * What the second factor authenticators need to know about a user: the types of stored credentials, whether the
+ * user has a (verified) email address and the pending required actions.
+ * <p>
+ * Asking for each credential type separately costs one storage round trip per type with JPA storage or a user
+ * federation; the summary reads the user's credentials once and answers all type questions from memory.
+ * {@link #get} keeps it for the rest of the request and, in the {@value #NOTE} note, for the rest of the login, so
+ * each execution of a multi-step flow reuses it. {@link #invalidate} drops it again, which
+ * {@link CredentialSummaryEventListenerProviderFactory} does when credentials change during the login.
+ */
+public final class CredentialTypeSummary {
+
+    static final String NOTE = "credentialTypeSummary";
+
+    private static final String ATTRIBUTE_PREFIX = CredentialTypeSummary.class.getName() + ':';
+
+    private static final String VERSION = "1";
+
+    private static final char FIELD_SEPARATOR = '\n';
+
+    private static final String LIST_SEPARATOR = ",";
+
+    @SuppressWarnings("deprecation")
+    private static final Set<String> OTP_TYPES = Set.of(OTPCredentialModel.TOTP, OTPCredentialModel.HOTP, OTPCredentialModel.OTP);
+
+    private final String userId;
+    private final Set<String> types;
+    private final Set<String> requiredActions;
+    private final boolean email;
+    private final boolean emailVerified;
+    private final boolean otp;
+
+    CredentialTypeSummary(String userId, Set<String> types, Set<String> requiredActions, boolean email, boolean emailVerified) {
+        this.userId = userId;
+        this.types = types;
+        this.requiredActions = requiredActions;
+        this.email = email;
+        this.emailVerified = emailVerified;
+        this.otp = types.stream().anyMatch(OTP_TYPES::contains);
+    }
+
+    /**
+     * Reads the summary from the user, bypassing the cache.
+     */
+    public static CredentialTypeSummary of(UserModel user) {
+        return new CredentialTypeSummary(user.getId(),
+                toSet(user.credentialManager().getStoredCredentialsStream().map(CredentialModel::getType)),
+                toSet(user.getRequiredActionsStream()),
+                user.getEmail() != null,
+                user.isEmailVerified());
+    }
+
+    /**
+     * Returns the summary cached for this request or login, reading it from the user the first time.
+     */
+    public static CredentialTypeSummary get(KeycloakSession session, UserModel user) {
+        String attribute = ATTRIBUTE_PREFIX + user.getId();
+        CredentialTypeSummary summary = session.getAttribute(attribute, CredentialTypeSummary.class);
+        if (summary != null) {
+            return summary;
+        }
+
+        AuthenticationSessionModel authSession = session.getContext().getAuthenticationSession();
+        if (authSession != null) {
+            summary = decode(authSession.getAuthNote(NOTE), user.getId());
+        }
+        if (summary == null) {
+            summary = of(user);
+            String note = summary.encode();
+            if (authSession != null && note != null) {
+                authSession.setAuthNote(NOTE, note);
+            }
+        }
+        session.setAttribute(attribute, summary);
+        return summary;
+    }
+
+    /**
+     * Drops the cached summary of the user, so the next {@link #get} reads it again.
+     */
+    public static void invalidate(KeycloakSession session, String userId) {
+        session.removeAttribute(ATTRIBUTE_PREFIX + userId);
+        AuthenticationSessionModel authSession = session.getContext().getAuthenticationSession();
+        if (authSession != null && decode(authSession.getAuthNote(NOTE), userId) != null) {
+            authSession.removeAuthNote(NOTE);
+        }
+    }
+
+    public boolean has(String type) {
+        return types.contains(type);
+    }
+
+    /** Whether the user has a TOTP or HOTP credential, as set up with an authenticator app. */
+    public boolean hasOtp() {
+        return otp;
+    }
+
+    public boolean hasEmail() {
+        return email;
+    }
+
+    public boolean isEmailVerified() {
+        return emailVerified;
+    }
+
+    public boolean hasRequiredAction(String action) {
+        return requiredActions.contains(action);
+    }
+
+    /**
+     * Returns the note value, or {@code null} if a credential type or required action can't be written to it.
+     */
+    String encode() {
+        if (Stream.concat(types.stream(), requiredActions.stream())
+                .anyMatch(value -> value.contains(LIST_SEPARATOR) || value.indexOf(FIELD_SEPARATOR) >= 0)) {
+            return null;
+        }
+        return VERSION + FIELD_SEPARATOR
+                + userId + FIELD_SEPARATOR
+                + (email ? '1' : '0') + (emailVerified ? '1' : '0') + FIELD_SEPARATOR
+                + String.join(LIST_SEPARATOR, types) + FIELD_SEPARATOR
+                + String.join(LIST_SEPARATOR, requiredActions);
+    }
+
+    /**
+     * Returns the summary held by a note, or {@code null} if there is none for the given user.
+     */
+    static CredentialTypeSummary decode(String note, String userId) {
+        if (note == null) {
+            return null;
+        }
+        String[] fields = note.split(String.valueOf(FIELD_SEPARATOR), -1);
+        if (fields.length != 5 || !VERSION.equals(fields[0]) || !fields[1].equals(userId) || fields[2].length() != 2) {
+            return null;
+        }
+        return new CredentialTypeSummary(userId, split(fields[3]), split(fields[4]),
+                fields[2].charAt(0) == '1', fields[2].charAt(1) == '1');
+    }
+
+    private static Set<String> split(String list) {
+        return list.isEmpty() ? Set.of() : toSet(Stream.of(list.split(LIST_SEPARATOR)));
+    }
+
+    private static Set<String> toSet(Stream<String> values) {
+        return values.collect(Collectors.toUnmodifiableSet());
+    }
+}
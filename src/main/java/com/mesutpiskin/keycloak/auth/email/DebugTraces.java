@@ -0,0 +1,47 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/**
+ * Decides whether a login's debug trace is logged.
+ * <p>
+ * Authenticators guard all of their debug output with the answer, so with DEBUG off a login costs a single level
+ * check and builds no log strings. With DEBUG on, only every n-th login is traced (system property
+ * {@value #SAMPLE_RATE_PROPERTY}, default {@value #DEFAULT_SAMPLE_RATE}), which keeps debug logging usable on a
+ * loaded server; at TRACE every login is. The decision is made at the first trace point of a login and kept in the
+ * {@value #NOTE} note, so every step of a sampled login is traced and the trace reads as a whole.
+ */
+public final class DebugTraces {
+
+    public static final String SAMPLE_RATE_PROPERTY = "keycloak.email-authenticator.debug-sample-rate";
+
+    static final String NOTE = "debugTrace";
+
+    private static final int DEFAULT_SAMPLE_RATE = 100;
+
+    private static final int SAMPLE_RATE = Math.max(1, Integer.getInteger(SAMPLE_RATE_PROPERTY, DEFAULT_SAMPLE_RATE));
+
+    private static final AtomicLong LOGINS = new AtomicLong();
+
+    private DebugTraces() {
+    }
+
+    public static boolean sample(Logger log, AuthenticationSessionModel authSession) {
+        if (!log.isDebugEnabled()) {
+            return false;
+        }
+        if (log.isTraceEnabled()) {
+            return true;
+        }
+        String decided = authSession.getAuthNote(NOTE);
+        if (decided != null) {
+            return Boolean.parseBoolean(decided);
+        }
+        boolean sampled = LOGINS.incrementAndGet() % SAMPLE_RATE == 0;
+        authSession.setAuthNote(NOTE, Boolean.toString(sampled));
+        return sampled;
+    }
+}
@@ -5,8 +5,6 @@ import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.AuthenticationFlowException;
-import org.keycloak.email.EmailException;
-import org.keycloak.email.EmailTemplateProvider;
 import org.keycloak.events.Errors;
 import org.keycloak.forms.login.LoginFormsProvider;
 import org.keycloak.models.AuthenticationExecutionModel;
@@ -22,24 +20,61 @@ import org.keycloak.common.util.SecretGenerator;
 
 import jakarta.ws.rs.core.MultivaluedMap;
 import jakarta.ws.rs.core.Response;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Locale;
 
 @JBossLog
 public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
-	private static final int MIN_RESEND_INTERVAL_SECONDS = 30;
-	private static final String LAST_RESEND_TIMESTAMP = "email-code-last-resend";
+
+    private EmailDispatcher dispatcher = EmailDispatcher.synchronous();
+
+    private SendRateLimiter rateLimiter = new LocalSendRateLimiter();
+
+    private EmailCircuitBreaker circuitBreaker = EmailCircuitBreaker.disabled();
+
+    private final EmailCodeHasher hasher = new EmailCodeHasher();
+
+    private final AuthenticatorConfigCache<EmailCodeConfig> codeConfigs = new AuthenticatorConfigCache<>(EmailCodeConfig::parse);
+
+    void setDispatcher(EmailDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    void setRateLimiter(SendRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    void setCircuitBreaker(EmailCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
 
     @Override
     public void authenticate(AuthenticationFlowContext context) {
-        challenge(context, null);
+        String sendError = generateAndSendEmailCode(context);
+        if (EmailConstants.UNAVAILABLE_MESSAGE.equals(sendError) && !context.getExecution().isRequired()) {
+            // no code can be sent right now, let an alternative execution (e.g. TOTP) take over
+            context.attempted();
+            return;
+        }
+        renderChallenge(context, sendError, null);
     }
 
+    /**
+     * Shows the code form again without sending a new code.
+     */
     @Override
     protected Response challenge(AuthenticationFlowContext context, String error, String field) {
-        generateAndSendEmailCode(context);
+        return renderChallenge(context, error, field);
+    }
 
+    /**
+     * Sends a new code, unless the resend interval or a limit prevents it, and shows the code form.
+     */
+    private Response sendAndChallenge(AuthenticationFlowContext context, String error, String field) {
+        String sendError = generateAndSendEmailCode(context);
+        return renderChallenge(context, error != null ? error : sendError, field);
+    }
+
+    private Response renderChallenge(AuthenticationFlowContext context, String error, String field) {
         LoginFormsProvider form = context.form().setExecution(context.getExecution().getId());
         if (error != null) {
             if (field != null) {
@@ -53,36 +88,84 @@ public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
         return response;
     }
 
-    private void generateAndSendEmailCode(AuthenticationFlowContext context) {
-        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
+    /**
+     * @return the error message to show if no code could be sent, null otherwise
+     */
+    private String generateAndSendEmailCode(AuthenticationFlowContext context) {
+        EmailCodeConfig codeConfig = getCodeConfig(context);
         AuthenticationSessionModel session = context.getAuthenticationSession();
 
         // respect minimum time
-        String lastResendTimestamp = session.getAuthNote(LAST_RESEND_TIMESTAMP);
-        if (lastResendTimestamp != null) {
-            long lastSentTime = Long.parseLong(lastResendTimestamp);
-            long now = System.currentTimeMillis();
-            if ((now - lastSentTime) < (MIN_RESEND_INTERVAL_SECONDS * 1000L)) {
-                // minimum time to send
-                log.warn("Tentativa de reenvio antes do tempo mínimo.");
-                return;
+        EmailCodeState state = EmailCodeState.read(session);
+        long now = System.currentTimeMillis();
+        if (state != null && (now - state.getLastSentAt()) < (codeConfig.getResendInterval() * 1000L)) {
+            // minimum time to send
+            if (DebugTraces.sample(log, session)) {
+                log.debugf("Tentativa de reenvio antes do tempo mínimo. realm=%s user=%s", context.getRealm().getId(), context.getUser().getId());
             }
+            AuthenticatorMetrics.sendThrottled(AuthenticatorMetrics.Throttle.RESEND_INTERVAL);
+            return null;
+        }
+
+        if (!withinSendLimits(context, codeConfig)) {
+            log.warnf("Code email rate limit reached. realm=%s user=%s", context.getRealm().getId(), context.getUser().getId());
+            AuthenticatorMetrics.sendThrottled(AuthenticatorMetrics.Throttle.RATE_LIMITED);
+            return EmailConstants.RATE_LIMITED_MESSAGE;
+        }
+
+        String realmId = context.getRealm().getId();
+        if (!circuitBreaker.allowSend(realmId)) {
+            log.warnf("Code email not sent, mail delivery is unavailable. realm=%s breaker=%s", realmId, circuitBreaker.getState(realmId));
+            AuthenticatorMetrics.sendThrottled(AuthenticatorMetrics.Throttle.UNAVAILABLE);
+            return EmailConstants.UNAVAILABLE_MESSAGE;
         }
 
-        int length = EmailConstants.DEFAULT_LENGTH;
-        int ttl = EmailConstants.DEFAULT_TTL;
-        if (config != null) {
-            length = Integer.parseInt(config.getConfig().get(EmailConstants.CODE_LENGTH));
-            ttl = Integer.parseInt(config.getConfig().get(EmailConstants.CODE_TTL));
+        String code = SecretGenerator.getInstance().randomString(codeConfig.getLength(), codeConfig.getAlphabet());
+        String codeHash = hasher.hash(context.getSession(), context.getRealm(), session, code);
+        if (codeHash == null) {
+            AuthenticatorMetrics.sendThrottled(AuthenticatorMetrics.Throttle.UNAVAILABLE);
+            return EmailConstants.UNAVAILABLE_MESSAGE;
         }
+        sendEmailWithCode(context.getSession(), context.getRealm(), context.getUser(), code, codeConfig.getTtl());
+        AuthenticatorMetrics.codeIssued();
 
-        String code = SecretGenerator.getInstance().randomString(length, SecretGenerator.DIGITS);
-        sendEmailWithCode(context.getSession(), context.getRealm(), context.getUser(), code, ttl);
+        EmailCodeState.issue(codeHash, now, codeConfig.getTtl()).write(session);
+        return null;
+    }
+
+    /**
+     * Counts the email against the per user, per address and per client IP limits. All limits are checked before any
+     * is counted, so an email refused by one limit does not use up the others. Unlike the resend interval these hold
+     * across authentication sessions.
+     */
+    private boolean withinSendLimits(AuthenticationFlowContext context, EmailCodeConfig codeConfig) {
+        KeycloakSession session = context.getSession();
+        String realmId = context.getRealm().getId();
+        UserModel user = context.getUser();
+        long window = codeConfig.getRateLimitWindowMillis();
+
+        String[] keys = {
+                "user:" + realmId + ':' + user.getId(),
+                user.getEmail() != null ? "address:" + realmId + ':' + user.getEmail().toLowerCase(Locale.ROOT) : null,
+                "ip:" + realmId + ':' + context.getConnection().getRemoteAddr() };
+        int[] limits = { codeConfig.getMaxEmailsPerUser(), codeConfig.getMaxEmailsPerAddress(), codeConfig.getMaxEmailsPerIp() };
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && limits[i] > 0 && rateLimiter.isLimited(session, keys[i], limits[i], window)) {
+                return false;
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && limits[i] > 0 && !rateLimiter.tryAcquire(session, keys[i], limits[i], window)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        session.setAuthNote(EmailConstants.CODE, code);
-        session.setAuthNote(EmailConstants.CODE_TTL, Long.toString(System.currentTimeMillis() + (ttl * 1000L)));
-        // update sent timestamp
-        session.setAuthNote(LAST_RESEND_TIMESTAMP, Long.toString(System.currentTimeMillis()));
+    private EmailCodeConfig getCodeConfig(AuthenticationFlowContext context) {
+        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
+        return config != null ? codeConfigs.get(config) : EmailCodeConfig.DEFAULT;
     }
 
     @Override
@@ -95,14 +178,14 @@ public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
 
         MultivaluedMap<String, String> formData = context.getHttpRequest().getDecodedFormParameters();
         if (formData.containsKey("resend")) {
-            String lastResend = context.getAuthenticationSession().getAuthNote(LAST_RESEND_TIMESTAMP);
-            if (lastResend != null) {
-                long lastSentTime = Long.parseLong(lastResend);
+            EmailCodeState state = EmailCodeState.read(context.getAuthenticationSession());
+            if (state != null) {
                 long now = System.currentTimeMillis();
-                long secondsSinceLast = (now - lastSentTime) / 1000;
-                long secondsRemaining = MIN_RESEND_INTERVAL_SECONDS - secondsSinceLast;
+                long secondsSinceLast = (now - state.getLastSentAt()) / 1000;
+                long secondsRemaining = getCodeConfig(context).getResendInterval() - secondsSinceLast;
 
                 if (secondsRemaining > 0) {
+                    AuthenticatorMetrics.sendThrottled(AuthenticatorMetrics.Throttle.RESEND_INTERVAL);
                     String msg = String.format("Por favor, aguarde %d segundo%s antes de reenviar o código.",
                             secondsRemaining,
                             secondsRemaining > 1 ? "s" : "");
@@ -113,8 +196,8 @@ public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
             }
 
             // Resend allowed
-            generateAndSendEmailCode(context);
-            showCleanForm(context);
+            String sendError = generateAndSendEmailCode(context);
+            showCleanForm(context, sendError);
             return;
         }
 
@@ -125,28 +208,51 @@ public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
             return;
         }
 
+        EmailCodeConfig codeConfig = getCodeConfig(context);
         AuthenticationSessionModel session = context.getAuthenticationSession();
-        String code = session.getAuthNote(EmailConstants.CODE);
-        String ttl = session.getAuthNote(EmailConstants.CODE_TTL);
+        EmailCodeState state = EmailCodeState.read(session);
+        if (isLockedOut(context, codeConfig, state)) {
+            // no code check and no new code while locked out, but still a usable page for the browser
+            context.getEvent().user(userModel).error(Errors.INVALID_USER_CREDENTIALS);
+            AuthenticatorMetrics.codeVerified(AuthenticatorMetrics.VerifyOutcome.LOCKED);
+            rejectLockedOut(context);
+            return;
+        }
+
+        String codeHash = state != null ? state.getCodeHash() : null;
         String enteredCode = formData.getFirst(EmailConstants.CODE);
+        if (enteredCode != null && !codeConfig.isNumeric()) {
+            // alphanumeric codes are generated in upper case
+            enteredCode = enteredCode.trim().toUpperCase(Locale.ROOT);
+        }
 
-        if (enteredCode.equals(code)) {
-            if (Long.parseLong(ttl) < System.currentTimeMillis()) {
+        if (codeHash != null && hasher.verify(context.getSession(), context.getRealm(), session, enteredCode, codeHash)) {
+            if (state.isExpired(System.currentTimeMillis())) {
                 // expired
+                AuthenticatorMetrics.codeVerified(AuthenticatorMetrics.VerifyOutcome.EXPIRED);
                 context.getEvent().user(userModel).error(Errors.EXPIRED_CODE);
-                Response challengeResponse = challenge(context, Messages.EXPIRED_ACTION_TOKEN_SESSION_EXISTS, EmailConstants.CODE);
+                Response challengeResponse = codeConfig.getReissuePolicy() != EmailCodeConfig.ReissuePolicy.NEVER
+                        ? sendAndChallenge(context, Messages.EXPIRED_ACTION_TOKEN_SESSION_EXISTS, EmailConstants.CODE)
+                        : challenge(context, Messages.EXPIRED_ACTION_TOKEN_SESSION_EXISTS, EmailConstants.CODE);
                 context.failureChallenge(AuthenticationFlowError.EXPIRED_CODE, challengeResponse);
             } else {
                 // valid
+                AuthenticatorMetrics.codeVerified(AuthenticatorMetrics.VerifyOutcome.VALID);
                 resetEmailCode(context);
                 context.success();
             }
         } else {
             // invalid
+            AuthenticatorMetrics.codeVerified(AuthenticatorMetrics.VerifyOutcome.INVALID);
+            String error = recordFailure(context, codeConfig, state)
+                    ? EmailConstants.TOO_MANY_ATTEMPTS_MESSAGE
+                    : Messages.INVALID_ACCESS_CODE;
             AuthenticationExecutionModel execution = context.getExecution();
             if (execution.isRequired()) {
                 context.getEvent().user(userModel).error(Errors.INVALID_USER_CREDENTIALS);
-                Response challengeResponse = challenge(context, Messages.INVALID_ACCESS_CODE, EmailConstants.CODE);
+                Response challengeResponse = codeConfig.getReissuePolicy() == EmailCodeConfig.ReissuePolicy.ALWAYS
+                        ? sendAndChallenge(context, error, EmailConstants.CODE)
+                        : challenge(context, error, EmailConstants.CODE);
                 context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS, challengeResponse);
             } else if (execution.isConditional() || execution.isAlternative()) {
                 context.attempted();
@@ -154,12 +260,73 @@ public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
         }
     }
 
+    /**
+     * Counts a wrong code against the current code and, if configured, against the user's failure window.
+     *
+     * @return true if this failure used up one of the limits
+     */
+    private boolean recordFailure(AuthenticationFlowContext context, EmailCodeConfig codeConfig, EmailCodeState state) {
+        boolean limited = false;
+        if (state != null && state.getCodeHash() != null) {
+            EmailCodeState failed = state.withAttempt();
+            if (codeConfig.getMaxAttempts() > 0 && failed.getAttempts() >= codeConfig.getMaxAttempts()) {
+                failed = failed.withoutCode();
+                limited = true;
+            }
+            failed.write(context.getAuthenticationSession());
+        }
+        if (codeConfig.getMaxFailuresPerUser() > 0
+                && !rateLimiter.tryAcquire(context.getSession(), failuresKey(context), codeConfig.getMaxFailuresPerUser(),
+                        codeConfig.getRateLimitWindowMillis())) {
+            limited = true;
+        }
+        if (limited) {
+            log.warnf("Too many wrong email codes. realm=%s user=%s", context.getRealm().getId(), context.getUser().getId());
+        }
+        return limited;
+    }
+
+    private boolean isLockedOut(AuthenticationFlowContext context, EmailCodeConfig codeConfig, EmailCodeState state) {
+        if (state != null && codeConfig.getMaxAttempts() > 0 && state.getAttempts() >= codeConfig.getMaxAttempts()) {
+            return true;
+        }
+        return codeConfig.getMaxFailuresPerUser() > 0
+                && rateLimiter.isLimited(context.getSession(), failuresKey(context), codeConfig.getMaxFailuresPerUser(),
+                        codeConfig.getRateLimitWindowMillis());
+    }
+
+    private static String failuresKey(AuthenticationFlowContext context) {
+        return "failures:" + context.getRealm().getId() + ':' + context.getUser().getId();
+    }
+
+    /**
+     * Rejects a code while the user is locked out, with the code form showing the lockout message and status 429.
+     * Failures of a required execution are still reported, so they count for the realm's brute force detection.
+     */
+    private void rejectLockedOut(AuthenticationFlowContext context) {
+        AuthenticationExecutionModel execution = context.getExecution();
+        if (execution.isRequired()) {
+            Response challengeResponse = context.form()
+                    .setExecution(execution.getId())
+                    .addError(new FormMessage(EmailConstants.CODE, EmailConstants.TOO_MANY_ATTEMPTS_MESSAGE))
+                    .setStatus(Response.Status.TOO_MANY_REQUESTS)
+                    .createForm("email-code-form.ftl");
+            context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS, challengeResponse);
+        } else if (execution.isConditional() || execution.isAlternative()) {
+            context.attempted();
+        }
+    }
+
     protected String disabledByBruteForceError() {
         return Messages.INVALID_ACCESS_CODE;
     }
 
     private void resetEmailCode(AuthenticationFlowContext context) {
-        context.getAuthenticationSession().removeAuthNote(EmailConstants.CODE);
+        AuthenticationSessionModel session = context.getAuthenticationSession();
+        EmailCodeState state = EmailCodeState.read(session);
+        if (state != null) {
+            state.withoutCode().write(session);
+        }
     }
 
     @Override
@@ -169,7 +336,7 @@ public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
 
     @Override
     public boolean configuredFor(KeycloakSession session, RealmModel realm, UserModel user) {
-        return user.getEmail() != null;
+        return CredentialTypeSummary.get(session, user).hasEmail();
     }
 
     @Override
@@ -188,26 +355,15 @@ public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
             throw new AuthenticationFlowException(AuthenticationFlowError.INVALID_USER);
         }
 
-        Map<String, Object> mailBodyAttributes = new HashMap<>();
-        mailBodyAttributes.put("username", user.getUsername());
-        mailBodyAttributes.put("code", code);
-        mailBodyAttributes.put("ttl", ttl);
-
-        String realmName = realm.getDisplayName() != null ? realm.getDisplayName() : realm.getName();
-        List<Object> subjectParams = List.of(realmName);
-        try {
-            EmailTemplateProvider emailProvider = session.getProvider(EmailTemplateProvider.class);
-            emailProvider.setRealm(realm);
-            emailProvider.setUser(user);
-            // Don't forget to add the welcome-email.ftl (html and text) template to your theme.
-            emailProvider.send("emailCodeSubject", subjectParams, "code-email.ftl", mailBodyAttributes);
-        } catch (EmailException eex) {
-            log.errorf(eex, "Failed to send access code email. realm=%s user=%s", realm.getId(), user.getUsername());
-        }
+        // Don't forget to add the code-email.ftl (html and text) template to your theme.
+        dispatcher.dispatch(session, realm, user, session.getContext().resolveLocale(user), code, ttl);
     }
     
-    private void showCleanForm(AuthenticationFlowContext context) {
+    private void showCleanForm(AuthenticationFlowContext context, String error) {
         LoginFormsProvider form = context.form().setExecution(context.getExecution().getId());
+        if (error != null) {
+            form.setError(error);
+        }
         Response response = form.createForm("email-code-form.ftl");
         context.challenge(response);
     }
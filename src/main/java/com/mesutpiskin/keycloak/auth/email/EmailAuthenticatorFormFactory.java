@@ -1,6 +1,8 @@
 package com.mesutpiskin.keycloak.auth.email;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import org.keycloak.Config;
 import org.keycloak.authentication.Authenticator;
@@ -15,6 +17,12 @@ public class EmailAuthenticatorFormFactory implements AuthenticatorFactory {
 	
     public static final String PROVIDER_ID = "email-authenticator";
 	public static final EmailAuthenticatorForm SINGLETON = new EmailAuthenticatorForm();
+
+    private EmailDispatcher dispatcher;
+
+    private SendRateLimiter rateLimiter;
+
+    private EmailCircuitBreaker circuitBreaker;
 	
     @Override
     public String getId() {
@@ -59,26 +67,79 @@ public class EmailAuthenticatorFormFactory implements AuthenticatorFactory {
                         ProviderConfigProperty.STRING_TYPE, String.valueOf(EmailConstants.DEFAULT_LENGTH)),
                 new ProviderConfigProperty(EmailConstants.CODE_TTL, "Time-to-live",
                         "The time to live in seconds for the code to be valid.", ProviderConfigProperty.STRING_TYPE,
-                        String.valueOf(EmailConstants.DEFAULT_TTL)));
+                        String.valueOf(EmailConstants.DEFAULT_TTL)),
+                new ProviderConfigProperty(EmailConstants.RESEND_INTERVAL, "Resend interval",
+                        "The minimum number of seconds between two code emails.", ProviderConfigProperty.STRING_TYPE,
+                        String.valueOf(EmailConstants.DEFAULT_RESEND_INTERVAL)),
+                codeAlphabetProperty(),
+                new ProviderConfigProperty(EmailConstants.MAX_EMAILS_PER_USER, "Max emails per user",
+                        "The maximum number of code emails sent to one user within the rate limit window. 0 disables the limit.",
+                        ProviderConfigProperty.STRING_TYPE, String.valueOf(EmailConstants.DEFAULT_MAX_EMAILS_PER_USER)),
+                new ProviderConfigProperty(EmailConstants.MAX_EMAILS_PER_ADDRESS, "Max emails per address",
+                        "The maximum number of code emails sent to one email address within the rate limit window. 0 disables the limit.",
+                        ProviderConfigProperty.STRING_TYPE, String.valueOf(EmailConstants.DEFAULT_MAX_EMAILS_PER_ADDRESS)),
+                new ProviderConfigProperty(EmailConstants.MAX_EMAILS_PER_IP, "Max emails per client IP",
+                        "The maximum number of code emails requested from one client IP within the rate limit window. 0 disables the limit.",
+                        ProviderConfigProperty.STRING_TYPE, String.valueOf(EmailConstants.DEFAULT_MAX_EMAILS_PER_IP)),
+                new ProviderConfigProperty(EmailConstants.RATE_LIMIT_WINDOW, "Rate limit window",
+                        "The window in seconds the email and failure limits apply to.",
+                        ProviderConfigProperty.STRING_TYPE, String.valueOf(EmailConstants.DEFAULT_RATE_LIMIT_WINDOW)),
+                new ProviderConfigProperty(EmailConstants.MAX_ATTEMPTS, "Max attempts per code",
+                        "The number of wrong codes that may be entered for one code before it is invalidated and a new one has to be requested. 0 disables the limit.",
+                        ProviderConfigProperty.STRING_TYPE, String.valueOf(EmailConstants.DEFAULT_MAX_ATTEMPTS)),
+                new ProviderConfigProperty(EmailConstants.MAX_FAILURES_PER_USER, "Max failures per user",
+                        "The number of wrong codes a user may enter within the rate limit window, over all login sessions. Further codes are rejected until the window passes. 0 disables the limit.",
+                        ProviderConfigProperty.STRING_TYPE, String.valueOf(EmailConstants.DEFAULT_MAX_FAILURES_PER_USER)),
+                reissuePolicyProperty());
+    }
+
+    private static ProviderConfigProperty reissuePolicyProperty() {
+        ProviderConfigProperty reissue = new ProviderConfigProperty(EmailConstants.REISSUE_ON_FAILURE, "Send new code on failure",
+                "Whether entering an expired code ('expired'), an expired or wrong code ('always') or no failure at all ('never') sends a new code. Otherwise the user has to request one.",
+                ProviderConfigProperty.LIST_TYPE, EmailCodeConfig.ReissuePolicy.EXPIRED.getOption());
+        reissue.setOptions(Arrays.stream(EmailCodeConfig.ReissuePolicy.values())
+                .map(EmailCodeConfig.ReissuePolicy::getOption)
+                .collect(Collectors.toList()));
+        return reissue;
+    }
+
+    private static ProviderConfigProperty codeAlphabetProperty() {
+        ProviderConfigProperty alphabet = new ProviderConfigProperty(EmailConstants.CODE_ALPHABET, "Code characters",
+                "Whether codes consist of digits only or of upper case letters and digits.",
+                ProviderConfigProperty.LIST_TYPE, EmailCodeConfig.ALPHABET_DIGITS);
+        alphabet.setOptions(List.of(EmailCodeConfig.ALPHABET_DIGITS, EmailCodeConfig.ALPHABET_ALPHANUMERIC));
+        return alphabet;
     }
 
     @Override
     public void close() {
-        // NOOP
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
     }
 
     @Override
     public Authenticator create(KeycloakSession session) {
+        return getAuthenticator();
+    }
+
+    protected EmailAuthenticatorForm getAuthenticator() {
         return SINGLETON;
     }
 
     @Override
     public void init(Config.Scope config) {
-        // NOOP
+        dispatcher = EmailDispatcher.create(config);
+        rateLimiter = SendRateLimiter.create(config);
+        circuitBreaker = EmailCircuitBreaker.create(config);
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // NOOP
+        dispatcher.start(factory, circuitBreaker);
+        getAuthenticator().setDispatcher(dispatcher);
+        getAuthenticator().setRateLimiter(rateLimiter);
+        getAuthenticator().setCircuitBreaker(circuitBreaker);
+        AuthenticatorMetrics.bind(getId(), dispatcher, circuitBreaker);
     }
 }
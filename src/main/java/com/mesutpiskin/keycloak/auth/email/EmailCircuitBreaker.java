@@ -0,0 +1,178 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.keycloak.Config;
+
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * Guards the code email send path of this node, separately for each realm, as each realm has its own SMTP settings.
+ * <p>
+ * After {@code breakerFailureThreshold} consecutive failed sends of a realm its breaker opens and no email of that
+ * realm is attempted for {@code breakerOpenSeconds}, so logins fail fast instead of waiting out SMTP timeouts for
+ * codes that would never arrive. Then a single probe email is let through; its outcome closes or reopens the breaker.
+ * <p>
+ * Independently, {@code sendBudgetPerSecond} caps the rate of code emails this node hands to its relays, over all
+ * realms. Only emails that pass the breaker take from the budget.
+ */
+@JBossLog
+public class EmailCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    static final String FAILURE_THRESHOLD = "breakerFailureThreshold";
+    static final String OPEN_SECONDS = "breakerOpenSeconds";
+    static final String SEND_BUDGET = "sendBudgetPerSecond";
+
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    private static final int DEFAULT_OPEN_SECONDS = 30;
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final int budgetPerSecond;
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    private double budgetTokens;
+    private long budgetRefilledAt = System.nanoTime();
+
+    private final LongAdder rejectedOpen = new LongAdder();
+    private final LongAdder rejectedBudget = new LongAdder();
+
+    EmailCircuitBreaker(int failureThreshold, int openSeconds, int budgetPerSecond) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openSeconds * 1000L;
+        this.budgetPerSecond = budgetPerSecond;
+        this.budgetTokens = budgetPerSecond;
+    }
+
+    public static EmailCircuitBreaker create(Config.Scope config) {
+        return new EmailCircuitBreaker(
+                config.getInt(FAILURE_THRESHOLD, DEFAULT_FAILURE_THRESHOLD),
+                config.getInt(OPEN_SECONDS, DEFAULT_OPEN_SECONDS),
+                config.getInt(SEND_BUDGET, 0));
+    }
+
+    public static EmailCircuitBreaker disabled() {
+        return new EmailCircuitBreaker(0, 0, 0);
+    }
+
+    /**
+     * @return true if an email of the realm may be sent now; the caller must then report the outcome through
+     * {@link #recordSuccess(String)} or {@link #recordFailure(String)}
+     */
+    public boolean allowSend(String realmId) {
+        if (budgetPerSecond <= 0 && failureThreshold <= 0) {
+            return true;
+        }
+        Circuit probing = null;
+        if (failureThreshold > 0) {
+            Circuit circuit = circuit(realmId);
+            if (circuit.state.get() != State.CLOSED) {
+                if (!circuit.allowProbe()) {
+                    rejectedOpen.increment();
+                    return false;
+                }
+                probing = circuit;
+            }
+        }
+        if (budgetPerSecond > 0 && !takeBudget()) {
+            if (probing != null) {
+                // the probe was not sent, let the next email try it
+                probing.nextProbeAt.set(0);
+            }
+            rejectedBudget.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public void recordSuccess(String realmId) {
+        Circuit circuit = circuits.get(realmId);
+        if (circuit == null) {
+            return;
+        }
+        circuit.consecutiveFailures.set(0);
+        if (circuit.state.get() != State.CLOSED && circuit.state.getAndSet(State.CLOSED) != State.CLOSED) {
+            log.infof("Code email sending recovered, circuit breaker closed. realm=%s", realmId);
+        }
+    }
+
+    public void recordFailure(String realmId) {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        Circuit circuit = circuit(realmId);
+        if (circuit.state.get() == State.HALF_OPEN || circuit.consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            circuit.open(realmId);
+        }
+    }
+
+    public State getState(String realmId) {
+        Circuit circuit = circuits.get(realmId);
+        return circuit != null ? circuit.state.get() : State.CLOSED;
+    }
+
+    /** Number of realms whose breaker is not closed. */
+    public long getOpenCount() {
+        return circuits.values().stream().filter(c -> c.state.get() != State.CLOSED).count();
+    }
+
+    /** Number of emails not attempted because the breaker was open. */
+    public long getRejectedOpenCount() {
+        return rejectedOpen.sum();
+    }
+
+    /** Number of emails not attempted because the node's send budget was used up. */
+    public long getRejectedBudgetCount() {
+        return rejectedBudget.sum();
+    }
+
+    private synchronized boolean takeBudget() {
+        long now = System.nanoTime();
+        budgetTokens = Math.min(budgetPerSecond, budgetTokens + (now - budgetRefilledAt) * budgetPerSecond / 1_000_000_000d);
+        budgetRefilledAt = now;
+        if (budgetTokens < 1d) {
+            return false;
+        }
+        budgetTokens -= 1d;
+        return true;
+    }
+
+    private Circuit circuit(String realmId) {
+        return circuits.computeIfAbsent(realmId, id -> new Circuit());
+    }
+
+    private final class Circuit {
+        private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicLong nextProbeAt = new AtomicLong();
+
+        private boolean allowProbe() {
+            // let exactly one probe through once the open period is over, and another one if it stays unanswered as long
+            long now = System.currentTimeMillis();
+            long probeAt = nextProbeAt.get();
+            if (now < probeAt || !nextProbeAt.compareAndSet(probeAt, now + openMillis)) {
+                return false;
+            }
+            state.compareAndSet(State.OPEN, State.HALF_OPEN);
+            return true;
+        }
+
+        private void open(String realmId) {
+            nextProbeAt.set(System.currentTimeMillis() + openMillis);
+            if (state.getAndSet(State.OPEN) != State.OPEN) {
+                log.warnf("Code email sending failed %d times in a row, circuit breaker open for %d seconds. realm=%s",
+                        consecutiveFailures.get(), openMillis / 1000, realmId);
+            }
+        }
+    }
+}
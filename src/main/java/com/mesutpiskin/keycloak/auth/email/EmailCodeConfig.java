@@ -0,0 +1,186 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.Locale;
+import java.util.Map;
+
+import org.keycloak.common.util.SecretGenerator;
+
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * Typed settings of an email OTP authenticator config, parsed once per config revision.
+ * <p>
+ * Missing settings take their defaults. Invalid settings are reported once, when the config revision is parsed,
+ * and replaced by their defaults, so a bad value never fails a login.
+ */
+@JBossLog
+public class EmailCodeConfig {
+
+    public static final String ALPHABET_DIGITS = "digits";
+    public static final String ALPHABET_ALPHANUMERIC = "alphanumeric";
+
+    /** Which wrong or expired codes make the form send a new code, subject to the resend interval and limits. */
+    public enum ReissuePolicy {
+        /** Failures only show the form again; a new code has to be requested. */
+        NEVER,
+        /** Entering an expired code sends a new one. */
+        EXPIRED,
+        /** Entering an expired or a wrong code sends a new one. */
+        ALWAYS;
+
+        public String getOption() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final char[] UPPER_ALPHANUMERIC = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+
+    private static final int MAX_LENGTH = 64;
+
+    private static final int MAX_SECONDS = Integer.MAX_VALUE / 1000;
+
+    static final EmailCodeConfig DEFAULT = parse(Map.of());
+
+    private final int length;
+    private final int ttl;
+    private final int resendInterval;
+    private final char[] alphabet;
+    private final int maxEmailsPerUser;
+    private final int maxEmailsPerAddress;
+    private final int maxEmailsPerIp;
+    private final long rateLimitWindowMillis;
+    private final int maxAttempts;
+    private final int maxFailuresPerUser;
+    private final ReissuePolicy reissuePolicy;
+
+    EmailCodeConfig(int length, int ttl, int resendInterval, char[] alphabet,
+                    int maxEmailsPerUser, int maxEmailsPerAddress, int maxEmailsPerIp, int rateLimitWindow,
+                    int maxAttempts, int maxFailuresPerUser, ReissuePolicy reissuePolicy) {
+        this.length = length;
+        this.ttl = ttl;
+        this.resendInterval = resendInterval;
+        this.alphabet = alphabet;
+        this.maxEmailsPerUser = maxEmailsPerUser;
+        this.maxEmailsPerAddress = maxEmailsPerAddress;
+        this.maxEmailsPerIp = maxEmailsPerIp;
+        this.rateLimitWindowMillis = rateLimitWindow * 1000L;
+        this.maxAttempts = maxAttempts;
+        this.maxFailuresPerUser = maxFailuresPerUser;
+        this.reissuePolicy = reissuePolicy;
+    }
+
+    public static EmailCodeConfig parse(Map<String, String> config) {
+        return new EmailCodeConfig(
+                parseInt(config, EmailConstants.CODE_LENGTH, EmailConstants.DEFAULT_LENGTH, 1, MAX_LENGTH),
+                parseInt(config, EmailConstants.CODE_TTL, EmailConstants.DEFAULT_TTL, 1, MAX_SECONDS),
+                parseInt(config, EmailConstants.RESEND_INTERVAL, EmailConstants.DEFAULT_RESEND_INTERVAL, 0, MAX_SECONDS),
+                parseAlphabet(config.get(EmailConstants.CODE_ALPHABET)),
+                parseInt(config, EmailConstants.MAX_EMAILS_PER_USER, EmailConstants.DEFAULT_MAX_EMAILS_PER_USER, 0, Integer.MAX_VALUE),
+                parseInt(config, EmailConstants.MAX_EMAILS_PER_ADDRESS, EmailConstants.DEFAULT_MAX_EMAILS_PER_ADDRESS, 0, Integer.MAX_VALUE),
+                parseInt(config, EmailConstants.MAX_EMAILS_PER_IP, EmailConstants.DEFAULT_MAX_EMAILS_PER_IP, 0, Integer.MAX_VALUE),
+                parseInt(config, EmailConstants.RATE_LIMIT_WINDOW, EmailConstants.DEFAULT_RATE_LIMIT_WINDOW, 1, MAX_SECONDS),
+                parseInt(config, EmailConstants.MAX_ATTEMPTS, EmailConstants.DEFAULT_MAX_ATTEMPTS, 0, Integer.MAX_VALUE),
+                parseInt(config, EmailConstants.MAX_FAILURES_PER_USER, EmailConstants.DEFAULT_MAX_FAILURES_PER_USER, 0, Integer.MAX_VALUE),
+                parseReissuePolicy(config.get(EmailConstants.REISSUE_ON_FAILURE)));
+    }
+
+    /** Number of characters of a generated code. */
+    public int getLength() {
+        return length;
+    }
+
+    /** Seconds a code stays valid. */
+    public int getTtl() {
+        return ttl;
+    }
+
+    /** Minimum number of seconds between two code emails of the same authentication session. */
+    public int getResendInterval() {
+        return resendInterval;
+    }
+
+    public char[] getAlphabet() {
+        return alphabet;
+    }
+
+    /** Maximum number of code emails per user within the rate limit window, 0 for no limit. */
+    public int getMaxEmailsPerUser() {
+        return maxEmailsPerUser;
+    }
+
+    /** Maximum number of code emails per email address within the rate limit window, 0 for no limit. */
+    public int getMaxEmailsPerAddress() {
+        return maxEmailsPerAddress;
+    }
+
+    /** Maximum number of code emails requested from one client IP within the rate limit window, 0 for no limit. */
+    public int getMaxEmailsPerIp() {
+        return maxEmailsPerIp;
+    }
+
+    public long getRateLimitWindowMillis() {
+        return rateLimitWindowMillis;
+    }
+
+    /** Maximum number of wrong codes entered for one code before it is invalidated, 0 for no limit. */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /** Maximum number of wrong codes entered by a user within the rate limit window, over all sessions, 0 for no limit. */
+    public int getMaxFailuresPerUser() {
+        return maxFailuresPerUser;
+    }
+
+    public ReissuePolicy getReissuePolicy() {
+        return reissuePolicy;
+    }
+
+    public boolean isNumeric() {
+        return alphabet == SecretGenerator.DIGITS;
+    }
+
+    private static int parseInt(Map<String, String> config, String key, int defaultValue, int min, int max) {
+        String value = config.get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed >= min && parsed <= max) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        log.errorf("Invalid email OTP setting %s='%s', expected a number between %d and %d. Using %d instead.",
+                key, value, min, max, defaultValue);
+        return defaultValue;
+    }
+
+    private static ReissuePolicy parseReissuePolicy(String value) {
+        if (value == null || value.isBlank()) {
+            return ReissuePolicy.EXPIRED;
+        }
+        for (ReissuePolicy policy : ReissuePolicy.values()) {
+            if (policy.getOption().equals(value)) {
+                return policy;
+            }
+        }
+        log.errorf("Invalid email OTP setting %s='%s'. Using %s instead.", EmailConstants.REISSUE_ON_FAILURE, value,
+                ReissuePolicy.EXPIRED.getOption());
+        return ReissuePolicy.EXPIRED;
+    }
+
+    private static char[] parseAlphabet(String value) {
+        if (value == null || value.isBlank() || ALPHABET_DIGITS.equals(value)) {
+            return SecretGenerator.DIGITS;
+        }
+        if (ALPHABET_ALPHANUMERIC.equals(value)) {
+            return UPPER_ALPHANUMERIC;
+        }
+        log.errorf("Invalid email OTP setting %s='%s'. Using %s instead.", EmailConstants.CODE_ALPHABET, value, ALPHABET_DIGITS);
+        return SecretGenerator.DIGITS;
+    }
+}
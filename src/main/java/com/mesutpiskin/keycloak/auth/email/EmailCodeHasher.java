@@ -0,0 +1,120 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * Hashes email codes with the realm's HMAC key before they are stored in the authentication session, and verifies
+ * entered codes in constant time.
+ * <p>
+ * The hash also covers the authentication session and tab, so a stored hash is worthless for any other login. Every
+ * node of a cluster shares the realm key, and codes hashed with a key that has since been rotated out of active use
+ * still verify as long as the key is enabled. Each thread keeps its own {@link Mac} per algorithm, initialized for
+ * the last key it used, so verification does not create JCA instances.
+ */
+@JBossLog
+public class EmailCodeHasher {
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private static final ThreadLocal<KeyedMac> HMAC_SHA512 = ThreadLocal.withInitial(() -> new KeyedMac("HmacSHA512"));
+    private static final ThreadLocal<KeyedMac> HMAC_SHA256 = ThreadLocal.withInitial(() -> new KeyedMac("HmacSHA256"));
+
+    /**
+     * @return the hash to store, or null if the realm has no HMAC key
+     */
+    public String hash(KeycloakSession session, RealmModel realm, AuthenticationSessionModel authSession, String code) {
+        KeyWrapper key = session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.HS512);
+        if (key == null || key.getSecretKey() == null) {
+            key = session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.HS256);
+        }
+        if (key == null || key.getSecretKey() == null) {
+            log.errorf("No active HMAC key to protect email codes with. realm=%s", realm.getId());
+            return null;
+        }
+        return ENCODER.encodeToString(mac(key.getAlgorithm(), key.getSecretKey(), binding(authSession), code));
+    }
+
+    public boolean verify(KeycloakSession session, RealmModel realm, AuthenticationSessionModel authSession,
+                          String enteredCode, String storedHash) {
+        if (enteredCode == null || storedHash == null) {
+            return false;
+        }
+        byte[] expected;
+        try {
+            expected = DECODER.decode(storedHash);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+
+        String binding = binding(authSession);
+        Iterator<KeyWrapper> keys = Stream.concat(
+                session.keys().getKeysStream(realm, KeyUse.SIG, Algorithm.HS512),
+                session.keys().getKeysStream(realm, KeyUse.SIG, Algorithm.HS256)).iterator();
+        while (keys.hasNext()) {
+            KeyWrapper key = keys.next();
+            if (key.getSecretKey() != null && matches(key.getAlgorithm(), key.getSecretKey(), binding, enteredCode, expected)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean matches(String algorithm, SecretKey key, String binding, String code, byte[] expected) {
+        return MessageDigest.isEqual(mac(algorithm, key, binding, code), expected);
+    }
+
+    static byte[] mac(String algorithm, SecretKey key, String binding, String code) {
+        Mac mac = (Algorithm.HS256.equals(algorithm) ? HMAC_SHA256 : HMAC_SHA512).get().init(key);
+        mac.update(binding.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return mac.doFinal(code.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String binding(AuthenticationSessionModel authSession) {
+        return authSession.getParentSession().getId() + '.' + authSession.getTabId();
+    }
+
+    private static class KeyedMac {
+        private final Mac mac;
+        private SecretKey key;
+
+        KeyedMac(String algorithm) {
+            try {
+                this.mac = Mac.getInstance(algorithm);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(algorithm + " is not available", e);
+            }
+        }
+
+        // doFinal resets the Mac to its initialized state, so it only needs initializing when the key changes
+        Mac init(SecretKey key) {
+            if (key != this.key) {
+                try {
+                    mac.init(key);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Invalid HMAC key", e);
+                }
+                this.key = key;
+            }
+            return mac;
+        }
+    }
+}
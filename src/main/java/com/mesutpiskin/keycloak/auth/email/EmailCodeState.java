@@ -0,0 +1,100 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/**
+ * State of the email code of an authentication session, kept in a single auth note so that every change is one
+ * write, and one replicated mutation in a cluster.
+ * <p>
+ * The note reads {@code 2.<codeHash>.<expiresAt>.<lastSentAt>.<attempts>}, with the timestamps in base 36
+ * milliseconds. The code itself is never stored, only its {@link EmailCodeHasher} hash. The hash is empty once the
+ * code has been used or discarded; the last send time is kept so the resend interval still applies. A note that
+ * cannot be decoded, e.g. one written by another version, counts as no state.
+ */
+public final class EmailCodeState {
+
+    private static final String VERSION = "2";
+
+    private static final char SEPARATOR = '.';
+
+    private final String codeHash;
+    private final long expiresAt;
+    private final long lastSentAt;
+    private final int attempts;
+
+    EmailCodeState(String codeHash, long expiresAt, long lastSentAt, int attempts) {
+        this.codeHash = codeHash;
+        this.expiresAt = expiresAt;
+        this.lastSentAt = lastSentAt;
+        this.attempts = attempts;
+    }
+
+    public static EmailCodeState issue(String codeHash, long now, int ttlSeconds) {
+        return new EmailCodeState(codeHash, now + ttlSeconds * 1000L, now, 0);
+    }
+
+    public static EmailCodeState read(AuthenticationSessionModel authSession) {
+        return decode(authSession.getAuthNote(EmailConstants.CODE_STATE));
+    }
+
+    public void write(AuthenticationSessionModel authSession) {
+        authSession.setAuthNote(EmailConstants.CODE_STATE, encode());
+    }
+
+    /** Hash of the code, or null if it has been used or discarded. */
+    public String getCodeHash() {
+        return codeHash.isEmpty() ? null : codeHash;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt < now;
+    }
+
+    public long getLastSentAt() {
+        return lastSentAt;
+    }
+
+    /** Number of wrong codes entered for the current code. */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public EmailCodeState withAttempt() {
+        return new EmailCodeState(codeHash, expiresAt, lastSentAt, attempts + 1);
+    }
+
+    public EmailCodeState withoutCode() {
+        return new EmailCodeState("", expiresAt, lastSentAt, attempts);
+    }
+
+    String encode() {
+        return new StringBuilder(codeHash.length() + 32)
+                .append(VERSION).append(SEPARATOR)
+                .append(codeHash).append(SEPARATOR)
+                .append(Long.toString(expiresAt, 36)).append(SEPARATOR)
+                .append(Long.toString(lastSentAt, 36)).append(SEPARATOR)
+                .append(attempts)
+                .toString();
+    }
+
+    static EmailCodeState decode(String note) {
+        if (note == null || !note.startsWith(VERSION + SEPARATOR)) {
+            return null;
+        }
+
+        int codeEnd = note.indexOf(SEPARATOR, 2);
+        int expiresEnd = codeEnd < 0 ? -1 : note.indexOf(SEPARATOR, codeEnd + 1);
+        int lastSentEnd = expiresEnd < 0 ? -1 : note.indexOf(SEPARATOR, expiresEnd + 1);
+        if (lastSentEnd < 0) {
+            return null;
+        }
+        try {
+            return new EmailCodeState(note.substring(2, codeEnd),
+                    Long.parseLong(note.substring(codeEnd + 1, expiresEnd), 36),
+                    Long.parseLong(note.substring(expiresEnd + 1, lastSentEnd), 36),
+                    Integer.parseInt(note.substring(lastSentEnd + 1)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
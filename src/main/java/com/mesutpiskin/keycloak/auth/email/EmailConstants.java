@@ -5,8 +5,28 @@ import lombok.experimental.UtilityClass;
 @UtilityClass
 public class EmailConstants {
 	public String CODE = "emailCode";
+	public String CODE_STATE = "emailCodeState";
 	public String CODE_LENGTH = "length";
 	public String CODE_TTL = "ttl";
+	public String RESEND_INTERVAL = "resendInterval";
+	public String CODE_ALPHABET = "alphabet";
+	public String RATE_LIMITED_MESSAGE = "emailCodeRateLimited";
+	public String UNAVAILABLE_MESSAGE = "emailCodeUnavailable";
+	public String TOO_MANY_ATTEMPTS_MESSAGE = "emailCodeTooManyAttempts";
+	public String MAX_ATTEMPTS = "maxAttempts";
+	public String MAX_FAILURES_PER_USER = "maxFailuresPerUser";
+	public String REISSUE_ON_FAILURE = "reissueOnFailure";
+	public String MAX_EMAILS_PER_USER = "maxEmailsPerUser";
+	public String MAX_EMAILS_PER_ADDRESS = "maxEmailsPerAddress";
+	public String MAX_EMAILS_PER_IP = "maxEmailsPerIp";
+	public String RATE_LIMIT_WINDOW = "rateLimitWindow";
 	public int DEFAULT_LENGTH = 6;
 	public int DEFAULT_TTL = 300;
+	public int DEFAULT_RESEND_INTERVAL = 30;
+	public int DEFAULT_MAX_EMAILS_PER_USER = 10;
+	public int DEFAULT_MAX_EMAILS_PER_ADDRESS = 10;
+	public int DEFAULT_MAX_EMAILS_PER_IP = 0;
+	public int DEFAULT_RATE_LIMIT_WINDOW = 900;
+	public int DEFAULT_MAX_ATTEMPTS = 5;
+	public int DEFAULT_MAX_FAILURES_PER_USER = 0;
 }
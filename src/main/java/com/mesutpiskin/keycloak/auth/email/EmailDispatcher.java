@@ -0,0 +1,243 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.keycloak.Config;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * Renders and sends code emails, either on the calling thread or on a bounded background executor.
+ * <p>
+ * In the asynchronous modes at most {@code dispatchQueueSize} emails may be pending at any time. When that
+ * bound is reached the email is sent on the calling thread instead, which slows the callers down to the
+ * pace of the relay rather than dropping codes or growing the queue without limit.
+ */
+@JBossLog
+public class EmailDispatcher {
+
+    public enum Mode {
+        SYNC, POOL, VIRTUAL
+    }
+
+    static final String MODE = "dispatchMode";
+    static final String THREADS = "dispatchThreads";
+    static final String QUEUE_SIZE = "dispatchQueueSize";
+    static final String SENDER = "emailSender";
+    static final String TEMPLATE_CACHE_SECONDS = "templateCacheSeconds";
+
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+    private static final int DEFAULT_TEMPLATE_CACHE_SECONDS = 300;
+
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final Semaphore pending;
+    private final int queueSize;
+    private final String senderProviderId;
+    private final CodeEmailRenderer renderer;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder sentInline = new LongAdder();
+    private final LongAdder sendNanos = new LongAdder();
+
+    private volatile KeycloakSessionFactory sessionFactory;
+
+    private EmailCircuitBreaker circuitBreaker = EmailCircuitBreaker.disabled();
+
+    EmailDispatcher(Mode mode, int threads, int queueSize, String senderProviderId, CodeEmailRenderer renderer) {
+        ExecutorService executor = null;
+        if (mode == Mode.VIRTUAL) {
+            executor = newVirtualThreadPerTaskExecutor();
+            if (executor == null) {
+                log.warn("Virtual threads are not available on this JVM, falling back to a worker pool for code emails");
+                mode = Mode.POOL;
+            }
+        }
+        if (mode == Mode.POOL) {
+            executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueSize), new DispatchThreadFactory());
+        }
+        this.mode = mode;
+        this.executor = executor;
+        this.pending = new Semaphore(queueSize);
+        this.queueSize = queueSize;
+        this.senderProviderId = senderProviderId;
+        this.renderer = renderer;
+    }
+
+    public static EmailDispatcher create(Config.Scope config) {
+        Mode mode = Mode.valueOf(config.get(MODE, Mode.POOL.name()).toUpperCase(Locale.ROOT));
+        int threads = config.getInt(THREADS, DEFAULT_THREADS);
+        int queueSize = config.getInt(QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+        String sender = config.get(SENDER);
+        log.infof("Code email dispatch mode=%s threads=%d queueSize=%d sender=%s", mode, threads, queueSize,
+                sender != null ? sender : "default");
+        int templateCacheSeconds = config.getInt(TEMPLATE_CACHE_SECONDS, DEFAULT_TEMPLATE_CACHE_SECONDS);
+        return new EmailDispatcher(mode, threads, queueSize, sender, new CodeEmailRenderer(templateCacheSeconds));
+    }
+
+    public static EmailDispatcher synchronous() {
+        return new EmailDispatcher(Mode.SYNC, 0, 1, null, new CodeEmailRenderer());
+    }
+
+    void start(KeycloakSessionFactory sessionFactory, EmailCircuitBreaker circuitBreaker) {
+        this.sessionFactory = sessionFactory;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Sends the code email, returning as soon as it is queued when running asynchronously. The locale must be
+     * resolved by the caller because the background session has no HTTP request to resolve it from.
+     */
+    public void dispatch(KeycloakSession session, RealmModel realm, UserModel user, Locale locale, String code, int ttl) {
+        if (executor == null || sessionFactory == null || !pending.tryAcquire()) {
+            if (executor != null) {
+                sentInline.increment();
+            }
+            deliver(session, realm, user, locale, code, ttl);
+            return;
+        }
+
+        String realmId = realm.getId();
+        String userId = user.getId();
+        try {
+            executor.execute(() -> {
+                try {
+                    KeycloakModelUtils.runJobInTransaction(sessionFactory, backgroundSession -> {
+                        RealmModel backgroundRealm = backgroundSession.realms().getRealm(realmId);
+                        if (backgroundRealm == null) {
+                            return;
+                        }
+                        backgroundSession.getContext().setRealm(backgroundRealm);
+                        UserModel backgroundUser = backgroundSession.users().getUserById(backgroundRealm, userId);
+                        if (backgroundUser == null) {
+                            return;
+                        }
+                        deliver(backgroundSession, backgroundRealm, backgroundUser, locale, code, ttl);
+                    });
+                } catch (RuntimeException e) {
+                    failed.increment();
+                    circuitBreaker.recordFailure(realmId);
+                    log.errorf(e, "Failed to send access code email. realm=%s user=%s", realmId, userId);
+                } finally {
+                    pending.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.release();
+            sentInline.increment();
+            deliver(session, realm, user, locale, code, ttl);
+        }
+    }
+
+    private void deliver(KeycloakSession session, RealmModel realm, UserModel user, Locale locale, String code, int ttl) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            CodeEmailRenderer.RenderedEmail email = renderer.render(session, realm, locale, user.getUsername(), code, ttl);
+            EmailSenderProvider sender = senderProviderId != null
+                    ? session.getProvider(EmailSenderProvider.class, senderProviderId)
+                    : session.getProvider(EmailSenderProvider.class);
+            sender.send(realm.getSmtpConfig(), user, email.getSubject(), email.getTextBody(), email.getHtmlBody());
+            sent.increment();
+            success = true;
+            circuitBreaker.recordSuccess(realm.getId());
+        } catch (EmailException | RuntimeException e) {
+            // unchecked failures too (templates, sender providers), so they count for the breaker and never reach the login
+            failed.increment();
+            circuitBreaker.recordFailure(realm.getId());
+            log.errorf(e, "Failed to send access code email. realm=%s user=%s", realm.getId(), user.getUsername());
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            sendNanos.add(elapsed);
+            AuthenticatorMetrics.sendCompleted(success, elapsed);
+            log.debugf("Access code email send took %d ms. realm=%s", TimeUnit.NANOSECONDS.toMillis(elapsed), realm.getId());
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * Number of emails sent on the calling thread because the dispatch queue was full.
+     */
+    public long getSentInlineCount() {
+        return sentInline.sum();
+    }
+
+    /**
+     * Number of emails queued for, or being sent by, the background executor.
+     */
+    public int getPendingCount() {
+        return executor == null ? 0 : queueSize - pending.availablePermits();
+    }
+
+    public double getAverageSendMillis() {
+        long count = sent.sum() + failed.sum();
+        return count == 0 ? 0d : (sendNanos.sum() / (double) count) / 1_000_000d;
+    }
+
+    void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Pending code emails were not sent before shutdown");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor only exists from Java 21 on, while the extension targets 17
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static class DispatchThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "email-otp-dispatch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.FORCE_OTP_FOR_HTTP_HEADER;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.OtpDecision.ABSTAIN;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.OtpDecision.SHOW_OTP;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.OtpDecision.SKIP_OTP;
+import static com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.SKIP_OTP_FOR_HTTP_HEADER;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.mesutpiskin.keycloak.auth.email.ConditionalEmailAuthenticatorForm.OtpDecision;
+
+import jakarta.ws.rs.core.MultivaluedMap;
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * The skip and force header rules of one authenticator config, evaluated in a single pass over the request headers.
+ * <p>
+ * A rule is configured as a pattern over {@code "<name>: <value>"}. When the pattern starts with a literal header
+ * name, e.g. {@code X-Forwarded-Host: (1.2.3.4|1.2.3.5)}, only headers with that name are looked at and the rest of
+ * the pattern is matched against the header value directly. Other patterns are matched against the joined header
+ * line as before, built in a reused buffer. Either way a match is a full, case insensitive match of the trimmed
+ * header line, as it always was.
+ */
+@JBossLog
+public class HeaderRules {
+
+    static final HeaderRules NONE = new HeaderRules(null, null);
+
+    private final HeaderRule skip;
+    private final HeaderRule force;
+
+    HeaderRules(HeaderRule skip, HeaderRule force) {
+        this.skip = skip;
+        this.force = force;
+    }
+
+    public static HeaderRules compile(Map<String, String> config) {
+        HeaderRule skip = HeaderRule.compile(SKIP_OTP_FOR_HTTP_HEADER, config.get(SKIP_OTP_FOR_HTTP_HEADER));
+        HeaderRule force = HeaderRule.compile(FORCE_OTP_FOR_HTTP_HEADER, config.get(FORCE_OTP_FOR_HTTP_HEADER));
+        return skip == null && force == null ? NONE : new HeaderRules(skip, force);
+    }
+
+    public boolean isEmpty() {
+        return skip == null && force == null;
+    }
+
+    /**
+     * Skip wins over force: a matching skip rule anywhere in the headers skips OTP, even if a force rule matched first.
+     */
+    OtpDecision evaluate(MultivaluedMap<String, String> requestHeaders) {
+        if (isEmpty()) {
+            return ABSTAIN;
+        }
+
+        boolean forceMatched = false;
+        for (Map.Entry<String, List<String>> entry : requestHeaders.entrySet()) {
+            String key = entry.getKey();
+            boolean checkSkip = skip != null && skip.acceptsName(key);
+            boolean checkForce = !forceMatched && force != null && force.acceptsName(key);
+            if (!checkSkip && !checkForce) {
+                continue;
+            }
+
+            for (String value : entry.getValue()) {
+                if (checkSkip && skip.matches(key, value)) {
+                    return SKIP_OTP;
+                }
+                if (checkForce && force.matches(key, value)) {
+                    if (skip == null) {
+                        return SHOW_OTP;
+                    }
+                    forceMatched = true;
+                    checkForce = false;
+                }
+            }
+        }
+
+        return forceMatched ? SHOW_OTP : ABSTAIN;
+    }
+
+    static class HeaderRule {
+
+        // need CASE_INSENSITIVE flag so that we also have matches when the underlying container use a different case than what
+        // is usually expected (e.g.: vertx)
+        private static final int FLAGS = Pattern.DOTALL | Pattern.CASE_INSENSITIVE;
+
+        /** Literal header name the rule is restricted to, or null if the pattern must see the whole header line. */
+        private final String name;
+        private final ThreadLocal<Matcher> matcher;
+        private final ThreadLocal<StringBuilder> line;
+
+        private HeaderRule(String name, Pattern pattern) {
+            this.name = name;
+            this.matcher = ThreadLocal.withInitial(() -> pattern.matcher(""));
+            this.line = name == null ? ThreadLocal.withInitial(StringBuilder::new) : null;
+        }
+
+        static HeaderRule compile(String key, String headerPattern) {
+            // every header line contains ": ", which a blank pattern can never match
+            if (headerPattern == null || headerPattern.isBlank()) {
+                return null;
+            }
+
+            try {
+                Pattern full = Pattern.compile(headerPattern, FLAGS);
+                int nameEnd = literalNameEnd(headerPattern);
+                if (nameEnd < 0) {
+                    return new HeaderRule(null, full);
+                }
+                return new HeaderRule(headerPattern.substring(0, nameEnd),
+                        Pattern.compile(headerPattern.substring(nameEnd + 2), FLAGS));
+            } catch (PatternSyntaxException e) {
+                log.errorf("Ignoring invalid %s pattern '%s': %s", key, headerPattern, e.getDescription());
+                return null;
+            }
+        }
+
+        boolean acceptsName(String key) {
+            if (name == null) {
+                return true;
+            }
+            int start = trimStart(key);
+            int end = trimEnd(key, start);
+            return end - start == name.length() && key.regionMatches(true, start, name, 0, name.length());
+        }
+
+        boolean matches(String key, String value) {
+            int valueStart = trimStart(value);
+            int valueEnd = trimEnd(value, valueStart);
+            Matcher m = matcher.get();
+            boolean matches;
+            if (name != null) {
+                matches = m.reset(value).region(valueStart, valueEnd).matches();
+            } else {
+                int keyStart = trimStart(key);
+                StringBuilder headerEntry = line.get();
+                headerEntry.setLength(0);
+                headerEntry.append(key, keyStart, trimEnd(key, keyStart)).append(": ").append(value, valueStart, valueEnd);
+                matches = m.reset(headerEntry).matches();
+            }
+            // don't keep the request's header value reachable from the thread
+            m.reset("");
+            return matches;
+        }
+
+        /**
+         * Returns the end of the literal header name if the pattern has the form {@code <name>: <value pattern>} and
+         * matching the value pattern against the header value alone is equivalent to matching the whole pattern
+         * against the header line, -1 otherwise.
+         */
+        static int literalNameEnd(String pattern) {
+            int i = 0;
+            while (i < pattern.length() && isNameChar(pattern.charAt(i))) {
+                i++;
+            }
+            if (i == 0 || i + 2 > pattern.length() || pattern.charAt(i) != ':' || pattern.charAt(i + 1) != ' ') {
+                return -1;
+            }
+            // the separating space must not be quantified and the value pattern must not alternate back into the name
+            if (i + 2 < pattern.length() && "*+?{".indexOf(pattern.charAt(i + 2)) >= 0) {
+                return -1;
+            }
+            return hasTopLevelAlternation(pattern, i + 2) ? -1 : i;
+        }
+
+        private static boolean isNameChar(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+        }
+
+        private static boolean hasTopLevelAlternation(String pattern, int from) {
+            int depth = 0;
+            int classDepth = 0;
+            for (int i = from; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '\\') {
+                    if (i + 1 < pattern.length() && pattern.charAt(i + 1) == 'Q') {
+                        int quoteEnd = pattern.indexOf("\\E", i + 2);
+                        i = quoteEnd < 0 ? pattern.length() : quoteEnd + 1;
+                    } else {
+                        i++;
+                    }
+                } else if (c == '[') {
+                    classDepth++;
+                } else if (c == ']' && classDepth > 0) {
+                    classDepth--;
+                } else if (classDepth == 0) {
+                    if (c == '(') {
+                        depth++;
+                    } else if (c == ')') {
+                        depth--;
+                    } else if (c == '|' && depth == 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static int trimStart(String s) {
+            int start = 0;
+            while (start < s.length() && s.charAt(start) <= ' ') {
+                start++;
+            }
+            return start;
+        }
+
+        private static int trimEnd(String s, int start) {
+            int end = s.length();
+            while (end > start && s.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            return end;
+        }
+    }
+}
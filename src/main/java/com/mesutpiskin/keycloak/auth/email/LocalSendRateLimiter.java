@@ -0,0 +1,95 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Token bucket per key, held in memory on this node. A bucket holds up to {@code limit} tokens and refills
+ * at {@code limit} tokens per window, so bursts up to the limit are allowed while the long-term rate stays bounded.
+ * <p>
+ * Buckets are updated under one of a fixed set of stripe locks rather than a lock per key. Idle buckets are
+ * dropped by at most one caller per sweep interval, so a map filled with fresh keys does not make every call scan it.
+ */
+public class LocalSendRateLimiter implements SendRateLimiter {
+
+    private static final int STRIPES = 64;
+
+    private static final int SWEEP_THRESHOLD = 100_000;
+
+    private static final long SWEEP_INTERVAL_MILLIS = 60_000L;
+
+    private final Object[] locks = new Object[STRIPES];
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    public LocalSendRateLimiter() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public boolean tryAcquire(KeycloakSession session, String key, int limit, long windowMillis) {
+        long now = System.currentTimeMillis();
+        long sweepAt = nextSweep.get();
+        if (now >= sweepAt && buckets.size() > SWEEP_THRESHOLD && nextSweep.compareAndSet(sweepAt, now + SWEEP_INTERVAL_MILLIS)) {
+            sweep(now);
+        }
+
+        synchronized (locks[(key.hashCode() & 0x7fffffff) % STRIPES]) {
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(limit, windowMillis, now);
+                buckets.put(key, bucket);
+            } else {
+                bucket.refill(limit, windowMillis, now);
+            }
+
+            if (bucket.tokens < 1d) {
+                return false;
+            }
+            bucket.tokens -= 1d;
+            return true;
+        }
+    }
+
+    @Override
+    public boolean isLimited(KeycloakSession session, String key, int limit, long windowMillis) {
+        synchronized (locks[(key.hashCode() & 0x7fffffff) % STRIPES]) {
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                return false;
+            }
+            bucket.refill(limit, windowMillis, System.currentTimeMillis());
+            return bucket.tokens < 1d;
+        }
+    }
+
+    // buckets that have been idle for a while are full again and can be dropped
+    private void sweep(long now) {
+        buckets.entrySet().removeIf(e -> now - e.getValue().lastRefill > e.getValue().idleMillis);
+    }
+
+    private static class Bucket {
+        private double tokens;
+        private long lastRefill;
+        private long idleMillis;
+
+        Bucket(int limit, long windowMillis, long now) {
+            this.tokens = limit;
+            this.lastRefill = now;
+            this.idleMillis = windowMillis;
+        }
+
+        void refill(int limit, long windowMillis, long now) {
+            tokens = Math.min(limit, tokens + (now - lastRefill) * ((double) limit / windowMillis));
+            lastRefill = now;
+            idleMillis = windowMillis;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+
+import org.keycloak.email.EmailException;
+import org.keycloak.common.enums.HostnameVerificationPolicy;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.truststore.JSSETruststoreConfigurator;
+import org.keycloak.vault.VaultStringSecret;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Sends emails with the realm's SMTP settings over connections kept open by {@link SmtpConnectionPool}.
+ * <p>
+ * Message layout and TLS settings, including Keycloak's truststore, follow Keycloak's default sender. Realms using
+ * token (XOAUTH2) authentication are handed to the default sender, since the pooled connections only authenticate
+ * with a password.
+ */
+public class PooledSmtpEmailSenderProvider implements EmailSenderProvider {
+
+    private static final String DEFAULT_TIMEOUT = "10000";
+
+    private final KeycloakSession session;
+    private final SmtpConnectionPool pool;
+
+    public PooledSmtpEmailSenderProvider(KeycloakSession session, SmtpConnectionPool pool) {
+        this.session = session;
+        this.pool = pool;
+    }
+
+    @Override
+    public void send(Map<String, String> config, UserModel user, String subject, String textBody, String htmlBody)
+            throws EmailException {
+        send(config, user.getEmail(), subject, textBody, htmlBody);
+    }
+
+    @Override
+    public void send(Map<String, String> config, String address, String subject, String textBody, String htmlBody)
+            throws EmailException {
+        if ("token".equals(config.get("authType"))) {
+            session.getProvider(EmailSenderProvider.class, "default").send(config, address, subject, textBody, htmlBody);
+            return;
+        }
+
+        String from = config.get("from");
+        if (from == null || from.isBlank()) {
+            throw new EmailException("No sender address configured in the realm settings for emails");
+        }
+
+        boolean auth = "true".equals(config.get("auth"));
+        String password = auth ? resolvePassword(config.get("password")) : null;
+        // the password is part of the key, so a realm only reuses connections it could have authenticated itself
+        String serverKey = String.join("|", config.getOrDefault("host", ""), config.getOrDefault("port", ""),
+                String.valueOf(config.get("ssl")), String.valueOf(config.get("starttls")),
+                auth ? config.getOrDefault("user", "") : "", auth ? passwordHash(password) : "",
+                String.valueOf(config.get("envelopeFrom")));
+
+        try {
+            Session mailSession = pool.getSession(serverKey);
+            if (mailSession == null) {
+                mailSession = Session.getInstance(toProperties(config));
+            }
+            Message message = buildMessage(mailSession, config, address, subject, textBody, htmlBody);
+
+            RealmModel realm = session.getContext().getRealm();
+            String owner = realm != null ? realm.getId() : "";
+            pool.send(owner, serverKey, () -> Session.getInstance(toProperties(config)), transport -> {
+                if (auth) {
+                    transport.connect(config.get("user"), password);
+                } else {
+                    transport.connect();
+                }
+            }, message);
+        } catch (MessagingException | UnsupportedEncodingException e) {
+            throw new EmailException(e);
+        }
+    }
+
+    private Message buildMessage(Session mailSession, Map<String, String> config, String address, String subject,
+                                 String textBody, String htmlBody) throws MessagingException, UnsupportedEncodingException {
+        Multipart multipart = new MimeMultipart("alternative");
+        if (textBody != null) {
+            MimeBodyPart textPart = new MimeBodyPart();
+            textPart.setText(textBody, "UTF-8");
+            multipart.addBodyPart(textPart);
+        }
+        if (htmlBody != null) {
+            MimeBodyPart htmlPart = new MimeBodyPart();
+            htmlPart.setContent(htmlBody, "text/html; charset=UTF-8");
+            multipart.addBodyPart(htmlPart);
+        }
+
+        MimeMessage message = new MimeMessage(mailSession);
+        message.setFrom(toInternetAddress(config.get("from"), config.get("fromDisplayName")));
+        String replyTo = config.get("replyTo");
+        if (replyTo != null && !replyTo.isBlank()) {
+            message.setReplyTo(new InternetAddress[] { toInternetAddress(replyTo, config.get("replyToDisplayName")) });
+        }
+        message.setHeader("To", address);
+        message.setSubject(subject, "utf-8");
+        message.setContent(multipart);
+        message.setSentDate(new Date());
+        message.saveChanges();
+        return message;
+    }
+
+    private Properties toProperties(Map<String, String> config) {
+        Properties props = new Properties();
+        props.setProperty("mail.transport.protocol", "smtp");
+        if (config.containsKey("host")) {
+            props.setProperty("mail.smtp.host", config.get("host"));
+        }
+        if (config.containsKey("port") && config.get("port") != null) {
+            props.setProperty("mail.smtp.port", config.get("port"));
+        }
+        if ("true".equals(config.get("auth"))) {
+            props.setProperty("mail.smtp.auth", "true");
+        }
+        if ("true".equals(config.get("ssl"))) {
+            props.setProperty("mail.smtp.ssl.enable", "true");
+        }
+        if ("true".equals(config.get("starttls"))) {
+            props.setProperty("mail.smtp.starttls.enable", "true");
+        }
+        if ("true".equals(config.get("ssl")) || "true".equals(config.get("starttls"))) {
+            setupTruststore(props);
+        }
+        String envelopeFrom = config.get("envelopeFrom");
+        if (envelopeFrom != null && !envelopeFrom.isBlank()) {
+            props.setProperty("mail.smtp.from", envelopeFrom);
+        }
+        props.setProperty("mail.smtp.timeout", config.getOrDefault("timeout", DEFAULT_TIMEOUT));
+        props.setProperty("mail.smtp.connectiontimeout", config.getOrDefault("connectionTimeout", DEFAULT_TIMEOUT));
+        props.setProperty("mail.smtp.writetimeout", config.getOrDefault("writeTimeout", DEFAULT_TIMEOUT));
+        return props;
+    }
+
+    // same as Keycloak's default sender, so relays with a certificate from a private CA keep working
+    private void setupTruststore(Properties props) {
+        boolean checkServerIdentity = true;
+        JSSETruststoreConfigurator configurator = new JSSETruststoreConfigurator(session);
+        SSLSocketFactory factory = configurator.getSSLSocketFactory();
+        if (factory != null) {
+            props.put("mail.smtp.ssl.socketFactory", factory);
+            if (configurator.getProvider().getPolicy() == HostnameVerificationPolicy.ANY) {
+                checkServerIdentity = false;
+            }
+        }
+        if (checkServerIdentity) {
+            props.setProperty("mail.smtp.ssl.checkserveridentity", "true");
+        }
+    }
+
+    private String resolvePassword(String password) {
+        try (VaultStringSecret secret = session.vault().getStringSecret(password)) {
+            return secret.get().orElse(password);
+        }
+    }
+
+    private static String passwordHash(String password) {
+        if (password == null) {
+            return "";
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static InternetAddress toInternetAddress(String email, String displayName)
+            throws UnsupportedEncodingException, MessagingException {
+        if (displayName == null || displayName.isBlank()) {
+            return new InternetAddress(email);
+        }
+        return new InternetAddress(email, displayName, "utf-8");
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,56 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.keycloak.Config;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.email.EmailSenderProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * Email sender that keeps SMTP connections open between sends. It is not the server's default sender; select it
+ * for code emails only with {@code --spi-authenticator-email-authenticator-email-sender=pooled-smtp}, or for all
+ * emails with {@code --spi-email-sender-provider=pooled-smtp}.
+ */
+@JBossLog
+public class PooledSmtpEmailSenderProviderFactory implements EmailSenderProviderFactory {
+
+    public static final String PROVIDER_ID = "pooled-smtp";
+
+    static final String POOL_SIZE = "poolSize";
+    static final String IDLE_SECONDS = "idleSeconds";
+    static final String BORROW_TIMEOUT_SECONDS = "borrowTimeoutSeconds";
+
+    private SmtpConnectionPool pool;
+
+    @Override
+    public EmailSenderProvider create(KeycloakSession session) {
+        return new PooledSmtpEmailSenderProvider(session, pool);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        int poolSize = config.getInt(POOL_SIZE, 4);
+        int idleSeconds = config.getInt(IDLE_SECONDS, 60);
+        int borrowTimeoutSeconds = config.getInt(BORROW_TIMEOUT_SECONDS, 10);
+        log.infof("Pooled SMTP sender poolSize=%d idleSeconds=%d", poolSize, idleSeconds);
+        pool = new SmtpConnectionPool(poolSize, idleSeconds * 1000L, borrowTimeoutSeconds * 1000L);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,126 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import static org.keycloak.models.utils.KeycloakModelUtils.getRoleFromString;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleContainerModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+
+/**
+ * Resolves the role references of the conditional authenticator ({@code role} or {@code client.role}) and checks
+ * user membership.
+ * <p>
+ * Resolved role ids are cached per realm. A cached id is only used while it still refers to a role with the same
+ * name in the same container, so renamed roles are resolved again; removed roles and created or removed clients,
+ * which may change how a reference with dots resolves, drop the realm's entries.
+ * <p>
+ * Membership can additionally be cached per user for a short time, saving the composite role expansion of
+ * {@link UserModel#hasRole(RoleModel)} for users that log in repeatedly. Role grants and revocations then take
+ * effect after at most that time.
+ */
+public class RoleResolver implements ProviderEventListener {
+
+    private static final int MAX_MEMBERSHIP_ENTRIES = 100_000;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, String>> roleIdsByRealm = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Membership> memberships = new ConcurrentHashMap<>();
+
+    public RoleModel resolve(RealmModel realm, String roleReference) {
+        ConcurrentMap<String, String> roleIds = roleIdsByRealm.computeIfAbsent(realm.getId(), id -> new ConcurrentHashMap<>());
+
+        String roleId = roleIds.get(roleReference);
+        if (roleId != null) {
+            RoleModel role = realm.getRoleById(roleId);
+            if (role != null && refersTo(role, roleReference)) {
+                return role;
+            }
+            roleIds.remove(roleReference);
+        }
+
+        RoleModel role = getRoleFromString(realm, roleReference);
+        if (role != null) {
+            roleIds.put(roleReference, role.getId());
+        }
+        return role;
+    }
+
+    /**
+     * @param membershipTtlMillis how long a membership check may be reused for the same user, 0 to always check
+     */
+    public boolean hasRole(RealmModel realm, UserModel user, String roleReference, long membershipTtlMillis) {
+        RoleModel role = resolve(realm, roleReference);
+        if (role == null) {
+            return false;
+        }
+        if (membershipTtlMillis <= 0) {
+            return user.hasRole(role);
+        }
+
+        String key = realm.getId() + '/' + user.getId() + '/' + role.getId();
+        long now = System.currentTimeMillis();
+        Membership membership = memberships.get(key);
+        if (membership != null && membership.expiresAt > now) {
+            return membership.member;
+        }
+
+        boolean member = user.hasRole(role);
+        if (memberships.size() >= MAX_MEMBERSHIP_ENTRIES) {
+            memberships.values().removeIf(m -> m.expiresAt <= now);
+            if (memberships.size() >= MAX_MEMBERSHIP_ENTRIES) {
+                memberships.clear();
+            }
+        }
+        memberships.put(key, new Membership(member, now + membershipTtlMillis));
+        return member;
+    }
+
+    @Override
+    public void onEvent(ProviderEvent event) {
+        if (event instanceof RealmModel.RealmRemovedEvent) {
+            evictRealm(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+        } else if (event instanceof ClientModel.ClientCreationEvent) {
+            evictRealm(((ClientModel.ClientCreationEvent) event).getCreatedClient().getRealm().getId());
+        } else if (event instanceof ClientModel.ClientRemovedEvent) {
+            evictRealm(((ClientModel.ClientRemovedEvent) event).getClient().getRealm().getId());
+        } else if (event instanceof RoleContainerModel.RoleRemovedEvent) {
+            roleIdsByRealm.clear();
+            memberships.clear();
+        }
+    }
+
+    private void evictRealm(String realmId) {
+        roleIdsByRealm.remove(realmId);
+        memberships.keySet().removeIf(key -> key.startsWith(realmId + '/'));
+    }
+
+    private static boolean refersTo(RoleModel role, String roleReference) {
+        String name = role.getName();
+        if (!role.isClientRole()) {
+            return name.equals(roleReference);
+        }
+
+        String clientId = ((ClientModel) role.getContainer()).getClientId();
+        return roleReference.length() == clientId.length() + 1 + name.length()
+                && roleReference.startsWith(clientId)
+                && roleReference.charAt(clientId.length()) == '.'
+                && roleReference.endsWith(name);
+    }
+
+    private static class Membership {
+        private final boolean member;
+        private final long expiresAt;
+
+        Membership(boolean member, long expiresAt) {
+            this.member = member;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
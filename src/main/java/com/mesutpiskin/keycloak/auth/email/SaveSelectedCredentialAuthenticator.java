@@ -17,11 +17,14 @@ public class SaveSelectedCredentialAuthenticator implements Authenticator {
 
         String selectedCredential = formData.getFirst("selectedCredential");
 
+        boolean trace = DebugTraces.sample(logger, context.getAuthenticationSession());
         if (selectedCredential != null) {
             context.getAuthenticationSession().setAuthNote("selectedCredential", selectedCredential);
-            logger.infof("selectedCredential capturado: %s", selectedCredential);
-        } else {
-            logger.warn("selectedCredential não encontrado no formData.");
+            if (trace) {
+                logger.debugf("selectedCredential capturado: %s", selectedCredential);
+            }
+        } else if (trace) {
+            logger.debug("selectedCredential não encontrado no formData.");
         }
 
         context.success();
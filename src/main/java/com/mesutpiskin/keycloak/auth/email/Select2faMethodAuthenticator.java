@@ -1,57 +1,66 @@
 package com.mesutpiskin.keycloak.auth.email;
 
+import java.util.Map;
+
 import jakarta.ws.rs.core.MultivaluedMap;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.Authenticator;
-import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserLoginFailureModel;
 import org.keycloak.models.UserModel;
-import org.keycloak.models.credential.OTPCredentialModel;
 
-import java.util.Set;
+import lombok.extern.jbosslog.JBossLog;
 
+@JBossLog
 public class Select2faMethodAuthenticator implements Authenticator {
 
+    static final String AUTO_SELECT = "autoSelect";
+    static final String REMEMBER_LAST_METHOD = "rememberLastMethod";
+
+    // Atributo do usuário com o último método escolhido
+    static final String LAST_METHOD_ATTRIBUTE = "last2faMethod";
+
+    private static final String EMAIL = "otp-email";
+    private static final String APP = "totp";
+
     @Override
     public void authenticate(AuthenticationFlowContext context) {
         UserModel user = context.getUser();
-        
-        SubjectCredentialManager credentialManager = user.credentialManager();
-
-        // Verificar credenciais TOTP
-        boolean hasTotp = credentialManager.getStoredCredentialsByTypeStream(OTPCredentialModel.TOTP)
-                                          .findAny()
-                                          .isPresent();
-        
-        System.out.println("TOTP Configurado: " + hasTotp);  // Log TOTP
-
-        // Verificar credenciais OTP
-        @SuppressWarnings("deprecation")
-		boolean hasOtp = credentialManager.getStoredCredentialsByTypeStream(OTPCredentialModel.OTP)
-                                          .findAny()
-                                          .isPresent();
-        
-        System.out.println("OTP Configurado: " + hasOtp);  // Log OTP
-
-        // Verificar credenciais HOTP
-        boolean hasHotp = credentialManager.getStoredCredentialsByTypeStream(OTPCredentialModel.HOTP)
-                                          .findAny()
-                                          .isPresent();
-        
-        System.out.println("HOTP Configurado: " + hasHotp);  // Log HOTP
-
-        boolean isOtpConfigured = hasTotp || hasHotp || hasOtp;
-
-        System.out.println("Algum OTP Configurado: " + isOtpConfigured);  // Log
-
-        Set<String> requiredActions = user.getRequiredActionsStream().collect(java.util.stream.Collectors.toSet());
-        
+
+        // Uma única leitura das credenciais responde TOTP, HOTP e OTP, e fica guardada para o restante do login
+        CredentialTypeSummary credentials = CredentialTypeSummary.get(context.getSession(), user);
+        boolean isOtpConfigured = credentials.hasOtp();
+
         // Mostra botão App (totp) somente se Required Action para configurar TOTP existir
-        boolean showApp = requiredActions.contains(UserModel.RequiredAction.CONFIGURE_TOTP.name()) || isOtpConfigured;
+        boolean showApp = isOtpConfigured
+                || credentials.hasRequiredAction(UserModel.RequiredAction.CONFIGURE_TOTP.name());
+
+        if (DebugTraces.sample(log, context.getAuthenticationSession())) {
+            log.debugf("Seleção de 2FA. user=%s otp=%s showApp=%s", user.getId(), isOtpConfigured, showApp);
+        }
 
-        System.out.println("ShowApp: " + showApp);  // Log showApp
-        
         // Email OTP sempre disponível, então não precisa checar
 
+        // Sem escolha real a fazer: segue direto com o email, sem renderizar a tela
+        if (!showApp && isEnabled(context, AUTO_SELECT)) {
+            select(context, EMAIL, true);
+            return;
+        }
+
+        // Reaproveita a última escolha do usuário, se ela ainda estiver configurada e não tiver falhado desde então
+        if (isEnabled(context, REMEMBER_LAST_METHOD)) {
+            String last = user.getFirstAttribute(LAST_METHOD_ATTRIBUTE);
+            if (last != null) {
+                if (isConfigured(credentials, last) && !hasLoginFailures(context)) {
+                    select(context, last, true);
+                    return;
+                }
+                // Sem o método ou depois de uma falha o usuário escolhe de novo, inclusive para trocar de método
+                user.removeAttribute(LAST_METHOD_ATTRIBUTE);
+            }
+        }
+
         context.challenge(
                 context.form()
                     .setAttribute("showApp", showApp)
@@ -64,7 +73,8 @@ public class Select2faMethodAuthenticator implements Authenticator {
         MultivaluedMap<String, String> formData = context.getHttpRequest().getDecodedFormParameters();
         String method = formData.getFirst("selectedCredential");
 
-        if (method == null || (!method.equals("otp-email") && !method.equals("totp"))) {
+        if (method == null || (!method.equals(EMAIL) && !method.equals(APP))) {
+            AuthenticatorMetrics.methodSelected(AuthenticatorMetrics.SelectedMethod.INVALID);
             context.form()
                 .setError("invalidCredential")
                 .setAttribute("showApp", true)
@@ -72,10 +82,46 @@ public class Select2faMethodAuthenticator implements Authenticator {
             return;
         }
 
+        if (isEnabled(context, REMEMBER_LAST_METHOD) && !method.equals(context.getUser().getFirstAttribute(LAST_METHOD_ATTRIBUTE))) {
+            context.getUser().setSingleAttribute(LAST_METHOD_ATTRIBUTE, method);
+        }
+        select(context, method, false);
+    }
+
+    private void select(AuthenticationFlowContext context, String method, boolean automatic) {
+        AuthenticatorMetrics.SelectedMethod selected = method.equals(APP)
+                ? AuthenticatorMetrics.SelectedMethod.APP
+                : AuthenticatorMetrics.SelectedMethod.EMAIL;
+        if (automatic) {
+            AuthenticatorMetrics.methodAutoSelected(selected);
+        } else {
+            AuthenticatorMetrics.methodSelected(selected);
+        }
         context.getAuthenticationSession().setAuthNote("selectedCredential", method);
         context.success();
     }
 
+    private static boolean isConfigured(CredentialTypeSummary credentials, String method) {
+        return EMAIL.equals(method) ? credentials.hasEmail() : APP.equals(method) && credentials.hasOtp();
+    }
+
+    // Falhas de login registradas pela detecção de força bruta, zeradas no próximo login com sucesso
+    private static boolean hasLoginFailures(AuthenticationFlowContext context) {
+        RealmModel realm = context.getRealm();
+        if (!realm.isBruteForceProtected()) {
+            return false;
+        }
+        UserLoginFailureModel failures = context.getSession().loginFailures()
+                .getUserLoginFailure(realm, context.getUser().getId());
+        return failures != null && failures.getNumFailures() > 0;
+    }
+
+    private static boolean isEnabled(AuthenticationFlowContext context, String option) {
+        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
+        Map<String, String> values = config == null ? null : config.getConfig();
+        return values != null && Boolean.parseBoolean(values.get(option));
+    }
+
     @Override public boolean requiresUser() { return true; }
     @Override public boolean configuredFor(org.keycloak.models.KeycloakSession session,
                                            org.keycloak.models.RealmModel realm,
@@ -25,7 +25,7 @@ public class Select2faMethodAuthenticatorFactory implements AuthenticatorFactory
 
     @Override
     public String getHelpText() {
-        return "Allows the user to select between Email or App OTP based on their configuration.";
+        return "Allows the user to select between Email or App OTP based on their configuration. Can skip the selection when there is only one method or the user's last choice is remembered.";
     }
 
     @Override
@@ -50,7 +50,7 @@ public class Select2faMethodAuthenticatorFactory implements AuthenticatorFactory
 
     @Override
     public boolean isConfigurable() {
-        return false;
+        return true;
     }
 
     @Override
@@ -69,8 +69,14 @@ public class Select2faMethodAuthenticatorFactory implements AuthenticatorFactory
 
     @Override
     public List<ProviderConfigProperty> getConfigProperties() {
-        // No configuration properties
-        return null;
+        return List.of(
+                new ProviderConfigProperty(Select2faMethodAuthenticator.AUTO_SELECT, "Skip single choice",
+                        "Continue with Email OTP without showing the selection form when the user can't use an authenticator app.",
+                        ProviderConfigProperty.BOOLEAN_TYPE, "false"),
+                new ProviderConfigProperty(Select2faMethodAuthenticator.REMEMBER_LAST_METHOD, "Remember last choice",
+                        "Store the chosen method in the user attribute '" + Select2faMethodAuthenticator.LAST_METHOD_ATTRIBUTE
+                                + "' and use it for later logins without showing the selection form. Remove the attribute to let the user choose again.",
+                        ProviderConfigProperty.BOOLEAN_TYPE, "false"));
     }
 
     @Override
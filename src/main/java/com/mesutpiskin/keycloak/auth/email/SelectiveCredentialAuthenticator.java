@@ -3,21 +3,21 @@ package com.mesutpiskin.keycloak.auth.email;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.models.UserModel;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
+import lombok.extern.jbosslog.JBossLog;
 
+@JBossLog
 public class SelectiveCredentialAuthenticator implements Authenticator {
 
-    private static final Logger logger = LoggerFactory.getLogger(SelectiveCredentialAuthenticator.class);
-
     @Override
     public void authenticate(AuthenticationFlowContext context) {
         String expected = context.getAuthenticatorConfig().getConfig().get("expectedValue");
         String selected = context.getAuthenticationSession().getAuthNote("selectedCredential");
 
-        logger.info("SelectiveCredentialAuthenticator - expectedValue (from config): {}", expected);
-        logger.info("SelectiveCredentialAuthenticator - selectedCredential (from screen/session): {}", selected);
+        if (DebugTraces.sample(log, context.getAuthenticationSession())) {
+            log.debugf("SelectiveCredentialAuthenticator - expectedValue (from config): %s, selectedCredential (from screen/session): %s",
+                    expected, selected);
+        }
 
         if (expected != null && expected.equals(selected)) {
             context.success();
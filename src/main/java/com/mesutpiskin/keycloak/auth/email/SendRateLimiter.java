@@ -0,0 +1,37 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.Locale;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Limits how often something may happen per key within a time window, e.g. how many code emails may be sent to
+ * one address. Implementations are node-wide singletons and must be thread safe.
+ */
+public interface SendRateLimiter {
+
+    String STORE = "rateLimitStore";
+
+    /**
+     * @return true if another event is allowed for the key, in which case it is counted; false if the limit is reached
+     */
+    boolean tryAcquire(KeycloakSession session, String key, int limit, long windowMillis);
+
+    /**
+     * @return true if the limit for the key is reached, without counting an event
+     */
+    boolean isLimited(KeycloakSession session, String key, int limit, long windowMillis);
+
+    static SendRateLimiter create(Config.Scope config) {
+        String store = config.get(STORE, "local").toLowerCase(Locale.ROOT);
+        switch (store) {
+            case "local":
+                return new LocalSendRateLimiter();
+            case "cluster":
+                return new ClusterSendRateLimiter();
+            default:
+                throw new IllegalArgumentException("Unknown " + STORE + " '" + store + "', expected 'local' or 'cluster'");
+        }
+    }
+}
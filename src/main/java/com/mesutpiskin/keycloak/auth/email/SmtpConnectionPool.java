@@ -0,0 +1,211 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * Keeps connected and authenticated SMTP transports open between sends, per SMTP server and account.
+ * <p>
+ * Consecutive code emails to the same relay then reuse a connection instead of paying for a TCP connect, TLS
+ * handshake and authentication each time. At most {@code maxConnections} transports are open per server; senders
+ * wait for a free one when all are busy. Transports idle for longer than {@code idleMillis} are closed. Each send
+ * borrows a connection for one message; queued messages are not batched into a single borrow, but the workers
+ * draining the dispatch queue keep reusing the same few connections.
+ * <p>
+ * Callers must make the server key cover everything the connection was authenticated with, including the
+ * password, so that a connection is only reused by senders that could have opened it themselves. Each send also
+ * names its owner (the realm); when an owner's settings change, the connections of its previous key are closed
+ * unless another owner still uses that key.
+ * <p>
+ * The pool only depends on Jakarta Mail, so it can be exercised against any SMTP server, including an in-process
+ * stub.
+ */
+@JBossLog
+public class SmtpConnectionPool {
+
+    private final int maxConnections;
+    private final long idleMillis;
+    private final long borrowTimeoutMillis;
+
+    private final ConcurrentMap<String, ServerPool> servers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> ownerKeys = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    public SmtpConnectionPool(int maxConnections, long idleMillis, long borrowTimeoutMillis) {
+        this.maxConnections = maxConnections;
+        this.idleMillis = idleMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-otp-smtp-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000L, idleMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the message over a pooled connection to the server identified by {@code serverKey}. A pooled connection
+     * is checked before use (an SMTP {@code NOOP}); if the server has meanwhile dropped it, a fresh one is opened.
+     * A message is never sent twice: once it was handed to a live connection, a failure is reported, not retried,
+     * since the server may already have accepted it.
+     *
+     * @param owner          who the settings behind {@code serverKey} belong to, e.g. the realm id
+     * @param sessionFactory creates the mail session for the server when it is first used
+     * @param connector      connects and authenticates a new transport
+     */
+    public void send(String owner, String serverKey, Supplier<Session> sessionFactory, Connector connector,
+                     Message message) throws MessagingException {
+        String previousKey = ownerKeys.put(owner, serverKey);
+        if (previousKey != null && !previousKey.equals(serverKey)) {
+            retire(previousKey);
+        }
+        ServerPool server = servers.computeIfAbsent(serverKey, key -> new ServerPool(sessionFactory.get()));
+
+        try {
+            if (!server.permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new MessagingException("No SMTP connection available within " + borrowTimeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for an SMTP connection", e);
+        }
+
+        try {
+            PooledTransport pooled;
+            while ((pooled = server.idle.pollFirst()) != null) {
+                if (pooled.transport.isConnected()) {
+                    try {
+                        pooled.transport.sendMessage(message, message.getAllRecipients());
+                    } catch (MessagingException e) {
+                        close(pooled);
+                        throw e;
+                    }
+                    server.release(pooled);
+                    return;
+                }
+                log.debug("Pooled SMTP connection was closed by the server, discarding it");
+                close(pooled);
+            }
+
+            PooledTransport fresh = new PooledTransport(server.session.getTransport());
+            try {
+                connector.connect(fresh.transport);
+                fresh.transport.sendMessage(message, message.getAllRecipients());
+            } catch (MessagingException e) {
+                close(fresh);
+                throw e;
+            }
+            server.release(fresh);
+        } finally {
+            server.permits.release();
+        }
+    }
+
+    public Session getSession(String serverKey) {
+        ServerPool server = servers.get(serverKey);
+        return server != null ? server.session : null;
+    }
+
+    /**
+     * Closes the connections of a key no owner uses anymore. Connections borrowed at the time are closed when they
+     * are returned.
+     */
+    private void retire(String serverKey) {
+        if (ownerKeys.containsValue(serverKey)) {
+            return;
+        }
+        ServerPool server = servers.remove(serverKey);
+        if (server == null) {
+            return;
+        }
+        log.debug("SMTP settings changed, closing the connections opened with the previous ones");
+        server.retired = true;
+        PooledTransport pooled;
+        while ((pooled = server.idle.pollFirst()) != null) {
+            close(pooled);
+        }
+    }
+
+    int getServerCount() {
+        return servers.size();
+    }
+
+    void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (ServerPool server : servers.values()) {
+            Iterator<PooledTransport> it = server.idle.descendingIterator();
+            while (it.hasNext()) {
+                PooledTransport pooled = it.next();
+                if (now - pooled.lastUsed > idleMillis && server.idle.removeLastOccurrence(pooled)) {
+                    close(pooled);
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        evictor.shutdownNow();
+        for (ServerPool server : servers.values()) {
+            PooledTransport pooled;
+            while ((pooled = server.idle.pollFirst()) != null) {
+                close(pooled);
+            }
+        }
+        servers.clear();
+    }
+
+    private static void close(PooledTransport pooled) {
+        try {
+            pooled.transport.close();
+        } catch (MessagingException e) {
+            log.tracef("Ignoring failure closing SMTP connection: %s", e.getMessage());
+        }
+    }
+
+    public interface Connector {
+        void connect(Transport transport) throws MessagingException;
+    }
+
+    private class ServerPool {
+        private final Session session;
+        // most recently used first, so idle connections collect at the tail and can be evicted from there
+        private final ConcurrentLinkedDeque<PooledTransport> idle = new ConcurrentLinkedDeque<>();
+        private final Semaphore permits = new Semaphore(maxConnections);
+        private volatile boolean retired;
+
+        ServerPool(Session session) {
+            this.session = session;
+        }
+
+        void release(PooledTransport pooled) {
+            pooled.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+            if (retired && idle.remove(pooled)) {
+                close(pooled);
+            }
+        }
+    }
+
+    private static class PooledTransport {
+        private final Transport transport;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        PooledTransport(Transport transport) {
+            this.transport = transport;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Properties;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+
+class SmtpConnectionPoolTest {
+
+    private SmtpStub stub;
+    private SmtpConnectionPool pool;
+    private Supplier<Session> sessionFactory;
+    private Message message;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        stub = new SmtpStub();
+        pool = new SmtpConnectionPool(4, 60_000L, 10_000L);
+
+        Properties props = new Properties();
+        props.setProperty("mail.transport.protocol", "smtp");
+        props.setProperty("mail.smtp.host", "127.0.0.1");
+        props.setProperty("mail.smtp.port", Integer.toString(stub.getPort()));
+        props.setProperty("mail.smtp.timeout", "5000");
+        sessionFactory = () -> Session.getInstance(props);
+
+        MimeMessage mime = new MimeMessage(sessionFactory.get());
+        mime.setFrom(new InternetAddress("keycloak@example.com"));
+        mime.setRecipient(Message.RecipientType.TO, new InternetAddress("jane.doe@example.com"));
+        mime.setSubject("Access code");
+        mime.setText("Your access code is 123456");
+        mime.saveChanges();
+        message = mime;
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdown();
+        stub.close();
+    }
+
+    @Test
+    void consecutiveSendsReuseOneConnection() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            send("realm-a", "server");
+        }
+
+        assertEquals(1, stub.getConnections());
+        assertEquals(10, stub.getMessages());
+    }
+
+    @Test
+    void droppedConnectionIsReplacedWithoutSendingTwice() throws Exception {
+        send("realm-a", "server");
+        stub.dropConnections();
+        send("realm-a", "server");
+
+        assertEquals(2, stub.getConnections());
+        assertEquals(2, stub.getMessages());
+    }
+
+    @Test
+    void changedSettingsCloseThePreviousConnections() throws Exception {
+        send("realm-a", "server|old-password");
+        send("realm-a", "server|new-password");
+
+        assertEquals(1, pool.getServerCount());
+        awaitOpenConnections(1);
+        assertEquals(2, stub.getMessages());
+    }
+
+    @Test
+    void sharedSettingsStayPooledWhileAnotherOwnerUsesThem() throws Exception {
+        send("realm-a", "server");
+        send("realm-b", "server");
+        send("realm-a", "server|new-password");
+
+        assertEquals(2, pool.getServerCount());
+        send("realm-b", "server");
+        assertEquals(2, stub.getConnections());
+        assertEquals(4, stub.getMessages());
+    }
+
+    private void send(String owner, String serverKey) throws MessagingException {
+        pool.send(owner, serverKey, sessionFactory, transport -> transport.connect(), message);
+    }
+
+    // the stub notices a closed connection on its own thread
+    private void awaitOpenConnections(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stub.getOpenConnections() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, stub.getOpenConnections());
+    }
+}